@@ -0,0 +1,416 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.util.ExtRegistry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Generates a synthetic Ext Plugin with the layout of a deployed one: the
+ * ext-[servlet-context-name].xml, the Ext jars, docroot files, and merged
+ * descriptors. The plugin is served by a stub {@link ServletContext} that
+ * maps resource paths to the generated directory.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtBenchmarkPlugin {
+
+	public static final String[] MERGED_DESCRIPTORS = {
+		"tiles-defs-ext.xml", "struts-config-ext.xml",
+		"liferay-portlet-ext.xml", "portlet-ext.xml", "liferay-display-ext.xml",
+		"remoting-servlet-ext.xml", "ext-model-hints.xml", "ext-spring.xml",
+		"ext-hbm.xml"
+	};
+
+	public ExtBenchmarkPlugin(
+		File pluginsDir, int index, int docrootFiles, int jarEntries,
+		int mergedDescriptors) {
+
+		_servletContextName = "benchmark-" + index + "-ext";
+		_webDir = new File(pluginsDir, _servletContextName);
+		_packageName = "com/liferay/benchmark/plugin" + index;
+		_docrootFiles = docrootFiles;
+		_jarEntries = jarEntries;
+		_mergedDescriptors = Math.min(
+			mergedDescriptors, MERGED_DESCRIPTORS.length);
+		_random = new Random(index);
+	}
+
+	public void generate() throws IOException {
+		List<String> files = new ArrayList<String>();
+
+		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_GLOBAL_CL) {
+			_writeJar(jarName, files);
+		}
+
+		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL) {
+			_writeJar(jarName, files);
+		}
+
+		for (int i = 0; i < _docrootFiles; i++) {
+			String file = "ext-web/docroot/" + _getDocrootPath(i);
+
+			_write(file, _getDocrootContent(i, 0));
+
+			files.add(file);
+		}
+
+		_writeMergedFile(
+			"ext-web/docroot/WEB-INF/web.xml",
+			"<?xml version=\"1.0\"?>\n\n" +
+				"<web-app xmlns=\"http://java.sun.com/xml/ns/j2ee\" " +
+					"version=\"2.4\">\n" +
+				"\t<filter>\n" +
+				"\t\t<filter-name>" + _servletContextName +
+					"</filter-name>\n" +
+				"\t\t<filter-class>com.liferay.benchmark.Filter" +
+					"</filter-class>\n" +
+				"\t</filter>\n" +
+				"\t<filter-mapping>\n" +
+				"\t\t<filter-name>" + _servletContextName +
+					"</filter-name>\n" +
+				"\t\t<url-pattern>/" + _servletContextName +
+					"/*</url-pattern>\n" +
+				"\t</filter-mapping>\n" +
+				"</web-app>",
+			files);
+		_writeMergedFile(
+			"ext-web/docroot/WEB-INF/classes/portal-ext.properties",
+			_servletContextName + ".enabled=true\n",
+			files);
+		_writeMergedFile(
+			"ext-web/docroot/html/js/liferay/service.js",
+			_getServiceJSContent(0), files);
+
+		for (int i = 0; i < _mergedDescriptors; i++) {
+			_writeMergedFile(
+				"ext-web/docroot/WEB-INF/" + MERGED_DESCRIPTORS[i],
+				"<?xml version=\"1.0\"?>\n\n<!-- " + _servletContextName +
+					" -->\n<root />",
+				files);
+		}
+
+		_writeExtXml(files);
+
+		_portletClassLoader = new URLClassLoader(
+			new URL[] {new File(_webDir, "WEB-INF/classes/").toURI().toURL()});
+
+		_servletContext = (ServletContext)Proxy.newProxyInstance(
+			ServletContext.class.getClassLoader(),
+			new Class[] {ServletContext.class},
+			new ServletContextInvocationHandler());
+	}
+
+	/**
+	 * Returns the portal relative paths of the docroot files the plugin
+	 * installs.
+	 */
+	public List<String> getDocrootPaths() {
+		List<String> docrootPaths = new ArrayList<String>(_docrootFiles);
+
+		for (int i = 0; i < _docrootFiles; i++) {
+			docrootPaths.add(_getDocrootPath(i));
+		}
+
+		return docrootPaths;
+	}
+
+	public ClassLoader getPortletClassLoader() {
+		return _portletClassLoader;
+	}
+
+	public ServletContext getServletContext() {
+		return _servletContext;
+	}
+
+	public String getServletContextName() {
+		return _servletContextName;
+	}
+
+	public File getWebDir() {
+		return _webDir;
+	}
+
+	/**
+	 * Changes the first docroot file and service.js of the plugin, so the
+	 * next redeploy copies a web file and rebuilds service.js.
+	 */
+	public void touch(int version) throws IOException {
+		if (_docrootFiles > 0) {
+			_write(
+				"ext-web/docroot/" + _getDocrootPath(0),
+				_getDocrootContent(0, version));
+		}
+
+		_write(
+			"ext-web/docroot/html/js/liferay/service.js",
+			_getServiceJSContent(version));
+	}
+
+	private String _getDocrootContent(int i, int version) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("<%-- ");
+		sb.append(_servletContextName);
+		sb.append(" ");
+		sb.append(version);
+		sb.append(" --%>\n");
+
+		for (int j = 0; j < 20; j++) {
+			sb.append("<div class=\"benchmark-");
+			sb.append(i);
+			sb.append("\"><liferay-ui:message key=\"benchmark-");
+			sb.append(j);
+			sb.append("\" /></div>\n");
+		}
+
+		return sb.toString();
+	}
+
+	private String _getDocrootPath(int i) {
+		return "html/portlet/ext/benchmark/" + _servletContextName + "/view" +
+			i + ".jsp";
+	}
+
+	private String _getServiceJSContent(int version) {
+		String serviceName = _servletContextName.replace('-', '_');
+
+		return "Liferay.Service.register(\"Liferay.Service." + serviceName +
+			"\", \"com.liferay.benchmark." + serviceName + "\");\n\n" +
+				"Liferay.Service.registerClass(\n" +
+				"\tLiferay.Service." + serviceName + ", \"Entry\",\n" +
+				"\t{\n" +
+				"\t\tgetEntry" + version + ": true\n" +
+				"\t}\n" +
+				");\n";
+	}
+
+	private File _getWebInfFile(String path) {
+		return new File(_webDir, "WEB-INF/" + path);
+	}
+
+	private void _write(String path, String content) throws IOException {
+		File file = _getWebInfFile(path);
+
+		file.getParentFile().mkdirs();
+
+		OutputStream os = new FileOutputStream(file);
+
+		try {
+			os.write(content.getBytes("UTF-8"));
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	private void _writeExtXml(List<String> files) throws IOException {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("<?xml version=\"1.0\"?>\n\n<ext-info>\n");
+		sb.append("\t<servlet-context-name>");
+		sb.append(_servletContextName);
+		sb.append("</servlet-context-name>\n\t<files>\n");
+
+		for (String file : files) {
+			sb.append("\t\t<file>");
+			sb.append(file);
+			sb.append("</file>\n");
+		}
+
+		sb.append("\t</files>\n</ext-info>");
+
+		_write("ext-" + _servletContextName + ".xml", sb.toString());
+	}
+
+	private void _writeJar(String jarName, List<String> files)
+		throws IOException {
+
+		File jarFile = _getWebInfFile(jarName + "/" + jarName + ".jar");
+
+		jarFile.getParentFile().mkdirs();
+
+		ZipOutputStream zipOutputStream = new ZipOutputStream(
+			new FileOutputStream(jarFile));
+
+		try {
+			byte[] bytes = new byte[4096];
+
+			for (int i = 0; i < _jarEntries; i++) {
+				String className =
+					_packageName + "/" + jarName.replace('-', '_') + "/Class" +
+						i;
+
+				zipOutputStream.putNextEntry(
+					new ZipEntry(className + ".class"));
+
+				// Half random bytes and half zeros compress like classes do
+
+				int length = 1024 + _random.nextInt(3072);
+
+				for (int j = 0; j < length; j++) {
+					bytes[j] = (j % 2 == 0) ? (byte)_random.nextInt() : 0;
+				}
+
+				zipOutputStream.write(bytes, 0, length);
+				zipOutputStream.closeEntry();
+
+				files.add(jarName + "/src/" + className + ".java");
+			}
+		}
+		finally {
+			zipOutputStream.close();
+		}
+	}
+
+	private void _writeMergedFile(
+			String path, String content, List<String> files)
+		throws IOException {
+
+		_write(path, content);
+
+		files.add(path);
+	}
+
+	private int _docrootFiles;
+	private int _jarEntries;
+	private int _mergedDescriptors;
+	private String _packageName;
+	private ClassLoader _portletClassLoader;
+	private Random _random;
+	private ServletContext _servletContext;
+	private String _servletContextName;
+	private File _webDir;
+
+	private class ServletContextInvocationHandler
+		implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+
+			String methodName = method.getName();
+
+			if (methodName.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (methodName.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			else if (methodName.equals("toString")) {
+				return "ServletContext " + _servletContextName;
+			}
+			else if (methodName.equals("getServletContextName")) {
+				return _servletContextName;
+			}
+			else if (methodName.equals("getContextPath")) {
+				return "/" + _servletContextName;
+			}
+			else if (methodName.equals("getRealPath")) {
+				return _getFile((String)args[0]).getPath();
+			}
+			else if (methodName.equals("getResource")) {
+				File file = _getFile((String)args[0]);
+
+				if (!file.exists()) {
+					return null;
+				}
+
+				return file.toURI().toURL();
+			}
+			else if (methodName.equals("getResourceAsStream")) {
+				File file = _getFile((String)args[0]);
+
+				if (!file.isFile()) {
+					return null;
+				}
+
+				return new FileInputStream(file);
+			}
+			else if (methodName.equals("getResourcePaths")) {
+				return _getResourcePaths((String)args[0]);
+			}
+			else if (methodName.equals("getAttribute") ||
+					 methodName.equals("getInitParameter")) {
+
+				return null;
+			}
+			else if (methodName.equals("log")) {
+				return null;
+			}
+
+			throw new UnsupportedOperationException(
+				"ServletContext." + methodName + " is not supported by the " +
+					"benchmark");
+		}
+
+		private File _getFile(String path) {
+			if (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+
+			return new File(_webDir, path);
+		}
+
+		private Set<String> _getResourcePaths(String path) {
+			File[] children = _getFile(path).listFiles();
+
+			if (children == null) {
+				return null;
+			}
+
+			if (!path.endsWith("/")) {
+				path = path + "/";
+			}
+
+			Set<String> resourcePaths = new TreeSet<String>();
+
+			for (File child : children) {
+				if (child.isDirectory()) {
+					resourcePaths.add(path + child.getName() + "/");
+				}
+				else {
+					resourcePaths.add(path + child.getName());
+				}
+			}
+
+			return Collections.unmodifiableSet(resourcePaths);
+		}
+
+	}
+
+}
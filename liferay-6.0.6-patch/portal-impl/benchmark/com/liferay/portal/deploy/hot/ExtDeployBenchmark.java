@@ -0,0 +1,555 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.deploy.hot.HotDeployEvent;
+import com.liferay.portal.kernel.util.FileUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
+import com.liferay.portal.kernel.xml.SAXReaderUtil;
+import com.liferay.portal.util.FileImpl;
+import com.liferay.portal.util.InitUtil;
+import com.liferay.portal.util.Portal;
+import com.liferay.portal.util.PortalUtil;
+import com.liferay.portal.xml.SAXReaderImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures install, redeploy, and uninstall cycles of synthetic Ext Plugins
+ * against a temporary portal directory and reports the throughput, the
+ * garbage collections, and the memory allocated by each operation. Run it with
+ * <code>ant benchmark</code>, the sizes of the plugins are set by the
+ * benchmark.* properties of build.xml.
+ *
+ * <p>
+ * Allocation is counted on the benchmark thread only. Set
+ * ext.hot.deploy.install.threads=1 in portal-ext.properties to include the
+ * install stages.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtDeployBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.err.println(
+				"Usage: ExtDeployBenchmark <benchmark-dir>");
+
+			System.exit(1);
+		}
+
+		ExtDeployBenchmark benchmark = new ExtDeployBenchmark(
+			new File(args[0]),
+			GetterUtil.getInteger(
+				System.getProperty("ext.benchmark.plugins"), 4),
+			GetterUtil.getInteger(
+				System.getProperty("ext.benchmark.docroot.files"), 200),
+			GetterUtil.getInteger(
+				System.getProperty("ext.benchmark.jar.entries"), 500),
+			GetterUtil.getInteger(
+				System.getProperty("ext.benchmark.merged.descriptors"), 5));
+
+		benchmark.setUp();
+
+		try {
+			benchmark.run(
+				GetterUtil.getInteger(
+					System.getProperty("ext.benchmark.warmup.cycles"), 2),
+				GetterUtil.getInteger(
+					System.getProperty("ext.benchmark.cycles"), 10));
+		}
+		finally {
+			benchmark.tearDown();
+		}
+
+		// The redeploy scheduler and the pipelines leave daemon threads only,
+		// but the log and MBean infrastructure may not
+
+		System.exit(0);
+	}
+
+	public ExtDeployBenchmark(
+		File dir, int pluginsCount, int docrootFiles, int jarEntries,
+		int mergedDescriptors) {
+
+		_dir = dir;
+		_pluginsCount = pluginsCount;
+		_docrootFiles = docrootFiles;
+		_jarEntries = jarEntries;
+		_mergedDescriptors = mergedDescriptors;
+	}
+
+	public void run(int warmupCycles, int cycles) throws Exception {
+		System.out.println(
+			"Ext deploy benchmark: " + _pluginsCount + " plugins, " +
+				_docrootFiles + " docroot files, " + _jarEntries +
+					" entries per jar, " + _mergedDescriptors +
+						" merged descriptors");
+
+		for (int i = 0; i < warmupCycles; i++) {
+			runCycle(i, null, null, null);
+		}
+
+		ExtDeployStatistics.getInstance().reset();
+
+		Measurement install = new Measurement(
+			"install", _pluginsCount * _docrootFiles);
+		Measurement redeploy = new Measurement("redeploy", _pluginsCount);
+		Measurement uninstall = new Measurement(
+			"uninstall", _pluginsCount * _docrootFiles);
+
+		for (int i = 0; i < cycles; i++) {
+			runCycle(warmupCycles + i, install, redeploy, uninstall);
+		}
+
+		System.out.println();
+		System.out.println(Measurement.HEADER);
+		System.out.println(install);
+		System.out.println(redeploy);
+		System.out.println(uninstall);
+		System.out.println();
+		System.out.println(ExtDeployStatistics.getInstance().getReport());
+	}
+
+	public void setUp() throws Exception {
+		InitUtil.init();
+
+		new FileUtil().setFile(FileImpl.getInstance());
+		new SAXReaderUtil().setSAXReader(SAXReaderImpl.getInstance());
+
+		FileUtil.deltree(_dir);
+
+		_portalWebDir = new File(_dir, "portal/");
+		_globalLibDir = new File(_dir, "global-lib/");
+
+		_createPortal();
+
+		new PortalUtil().setPortal(
+			(Portal)Proxy.newProxyInstance(
+				Portal.class.getClassLoader(), new Class[] {Portal.class},
+				new PortalInvocationHandler()));
+
+		File pluginsDir = new File(_dir, "plugins");
+
+		for (int i = 0; i < _pluginsCount; i++) {
+			ExtBenchmarkPlugin plugin = new ExtBenchmarkPlugin(
+				pluginsDir, i, _docrootFiles, _jarEntries, _mergedDescriptors);
+
+			plugin.generate();
+
+			_plugins.add(plugin);
+		}
+
+		_listener = new BenchmarkExtHotDeployListener();
+	}
+
+	public void tearDown() {
+		ExtHotDeployListener.shutdown();
+
+		FileUtil.deltree(_dir);
+	}
+
+	protected void runCycle(
+			int cycle, Measurement install, Measurement redeploy,
+			Measurement uninstall)
+		throws Exception {
+
+		List<HotDeployEvent> events = new ArrayList<HotDeployEvent>();
+
+		for (ExtBenchmarkPlugin plugin : _plugins) {
+			events.add(
+				new HotDeployEvent(
+					plugin.getServletContext(),
+					plugin.getPortletClassLoader()));
+		}
+
+		Sample sample = new Sample();
+
+		_listener.deployExts(events);
+
+		sample.end(install);
+
+		_checkInstalled(true);
+
+		for (ExtBenchmarkPlugin plugin : _plugins) {
+			plugin.touch(cycle + 1);
+
+			sample = new Sample();
+
+			_listener.redeploy(
+				plugin.getServletContext(), plugin.getPortletClassLoader());
+
+			sample.end(redeploy);
+		}
+
+		sample = new Sample();
+
+		for (ExtBenchmarkPlugin plugin : _plugins) {
+			_listener.uninstallExt(plugin.getServletContextName());
+		}
+
+		sample.end(uninstall);
+
+		_checkInstalled(false);
+	}
+
+	private void _checkInstalled(boolean installed) throws IOException {
+		for (ExtBenchmarkPlugin plugin : _plugins) {
+			for (String docrootPath : plugin.getDocrootPaths()) {
+				File file = new File(_portalWebDir, docrootPath);
+
+				if (file.exists() != installed) {
+					throw new IllegalStateException(
+						"Unexpected state of " + file + " after " +
+							(installed ? "install" : "uninstall"));
+				}
+			}
+		}
+
+		if (installed) {
+			return;
+		}
+
+		// Uninstalling the last plugin restores the merged portal files
+
+		_checkRestored("WEB-INF/web.xml", _PORTAL_WEB_XML);
+		_checkRestored(ExtServiceJSBundle.SERVICE_JS, _PORTAL_SERVICE_JS);
+	}
+
+	private void _checkRestored(String path, String content)
+		throws IOException {
+
+		File file = new File(_portalWebDir, path);
+
+		if (!content.equals(_read(file))) {
+			throw new IllegalStateException(
+				file + " has not been restored after uninstall");
+		}
+	}
+
+	private void _createPortal() throws IOException {
+		_write(new File(_portalWebDir, "WEB-INF/web.xml"), _PORTAL_WEB_XML);
+		_write(
+			new File(_portalWebDir, ExtServiceJSBundle.SERVICE_JS),
+			_PORTAL_SERVICE_JS);
+
+		new File(_portalWebDir, "WEB-INF/lib").mkdirs();
+
+		_globalLibDir.mkdirs();
+	}
+
+	private String _read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		InputStream is = new FileInputStream(file);
+
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+			byte[] buffer = new byte[8192];
+
+			int length = 0;
+
+			while ((length = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, length);
+			}
+
+			return baos.toString("UTF-8");
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private void _write(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+
+		OutputStream os = new FileOutputStream(file);
+
+		try {
+			os.write(content.getBytes("UTF-8"));
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	private static final String _PORTAL_SERVICE_JS =
+		"Liferay.Service.register(\"Liferay.Service.Portal\", " +
+			"\"com.liferay.portal.service\");\n";
+
+	private static final String _PORTAL_WEB_XML =
+		"<?xml version=\"1.0\"?>\n\n" +
+			"<web-app xmlns=\"http://java.sun.com/xml/ns/j2ee\" " +
+				"version=\"2.4\">\n" +
+			"\t<filter>\n" +
+			"\t\t<filter-name>Portal Filter</filter-name>\n" +
+			"\t\t<filter-class>com.liferay.portal.Filter</filter-class>\n" +
+			"\t</filter>\n" +
+			"\t<servlet>\n" +
+			"\t\t<servlet-name>Main Servlet</servlet-name>\n" +
+			"\t\t<servlet-class>com.liferay.portal.servlet.MainServlet" +
+				"</servlet-class>\n" +
+			"\t</servlet>\n" +
+			"</web-app>";
+
+	private File _dir;
+	private int _docrootFiles;
+	private File _globalLibDir;
+	private int _jarEntries;
+	private ExtHotDeployListener _listener;
+	private int _mergedDescriptors;
+	private List<ExtBenchmarkPlugin> _plugins =
+		new ArrayList<ExtBenchmarkPlugin>();
+	private int _pluginsCount;
+	private File _portalWebDir;
+
+	private static class Measurement {
+
+		public static final String HEADER =
+			"operation\tcount\tavg ms\tmin ms\tmax ms\titems/s\tgc count\t" +
+				"gc ms\tallocated KB";
+
+		public Measurement(String name, int items) {
+			_name = name;
+			_items = items;
+		}
+
+		public void add(
+			long time, long gcCount, long gcTime, long allocatedBytes) {
+
+			_count++;
+			_gcCount += gcCount;
+			_gcTime += gcTime;
+			_time += time;
+
+			if (time < _minTime) {
+				_minTime = time;
+			}
+
+			if (time > _maxTime) {
+				_maxTime = time;
+			}
+
+			if (allocatedBytes < 0) {
+				_allocatedBytes = -1;
+			}
+			else if (_allocatedBytes >= 0) {
+				_allocatedBytes += allocatedBytes;
+			}
+		}
+
+		public String toString() {
+			if (_count == 0) {
+				return _name + "\t0";
+			}
+
+			double avgTime = _toMillis(_time) / _count;
+
+			String allocated = "n/a";
+
+			if (_allocatedBytes >= 0) {
+				allocated = String.valueOf(_allocatedBytes / _count / 1024);
+			}
+
+			return _name + "\t" + _count + "\t" +
+				String.format("%.1f", avgTime) + "\t" +
+					String.format("%.1f", _toMillis(_minTime)) + "\t" +
+						String.format("%.1f", _toMillis(_maxTime)) + "\t" +
+							String.format("%.0f", _items * 1000 / avgTime) +
+								"\t" + _gcCount + "\t" + _gcTime + "\t" +
+									allocated;
+		}
+
+		private double _toMillis(long nanos) {
+			return nanos / 1000000.0;
+		}
+
+		private long _allocatedBytes;
+		private int _count;
+		private long _gcCount;
+		private long _gcTime;
+		private int _items;
+		private long _maxTime;
+		private long _minTime = Long.MAX_VALUE;
+		private String _name;
+		private long _time;
+
+	}
+
+	private static class Sample {
+
+		public Sample() {
+			_allocatedBytes = _getAllocatedBytes();
+			_gcCount = _getGcCount();
+			_gcTime = _getGcTime();
+			_startTime = System.nanoTime();
+		}
+
+		public void end(Measurement measurement) {
+			long time = System.nanoTime() - _startTime;
+
+			if (measurement == null) {
+				return;
+			}
+
+			long allocatedBytes = -1;
+
+			if (_allocatedBytes >= 0) {
+				allocatedBytes = _getAllocatedBytes() - _allocatedBytes;
+			}
+
+			measurement.add(
+				time, _getGcCount() - _gcCount, _getGcTime() - _gcTime,
+				allocatedBytes);
+		}
+
+		/**
+		 * Returns the bytes allocated by the current thread, or -1 if the JVM
+		 * doesn't count them. The counter is a HotSpot extension of Java 6.
+		 */
+		private static long _getAllocatedBytes() {
+			if (_getThreadAllocatedBytesMethod == null) {
+				return -1;
+			}
+
+			ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+			try {
+				Object allocatedBytes = _getThreadAllocatedBytesMethod.invoke(
+					threadMXBean, Thread.currentThread().getId());
+
+				return ((Long)allocatedBytes).longValue();
+			}
+			catch (Exception e) {
+				return -1;
+			}
+		}
+
+		private static long _getGcCount() {
+			long gcCount = 0;
+
+			for (GarbageCollectorMXBean garbageCollectorMXBean :
+					ManagementFactory.getGarbageCollectorMXBeans()) {
+
+				gcCount += garbageCollectorMXBean.getCollectionCount();
+			}
+
+			return gcCount;
+		}
+
+		private static long _getGcTime() {
+			long gcTime = 0;
+
+			for (GarbageCollectorMXBean garbageCollectorMXBean :
+					ManagementFactory.getGarbageCollectorMXBeans()) {
+
+				gcTime += garbageCollectorMXBean.getCollectionTime();
+			}
+
+			return gcTime;
+		}
+
+		private static Method _getThreadAllocatedBytesMethod;
+
+		static {
+			try {
+				Class<?> threadMXBeanClass = Class.forName(
+					"com.sun.management.ThreadMXBean");
+
+				if (threadMXBeanClass.isInstance(
+						ManagementFactory.getThreadMXBean())) {
+
+					_getThreadAllocatedBytesMethod =
+						threadMXBeanClass.getMethod(
+							"getThreadAllocatedBytes", long.class);
+				}
+			}
+			catch (Exception e) {
+			}
+		}
+
+		private long _allocatedBytes;
+		private long _gcCount;
+		private long _gcTime;
+		private long _startTime;
+
+	}
+
+	private class BenchmarkExtHotDeployListener extends ExtHotDeployListener {
+
+		protected String getPluginWebDir(ClassLoader portletClassLoader) {
+			for (ExtBenchmarkPlugin plugin : _plugins) {
+				if (plugin.getPortletClassLoader() == portletClassLoader) {
+					return plugin.getWebDir().getPath() + "/";
+				}
+			}
+
+			throw new IllegalArgumentException(
+				"Unknown class loader " + portletClassLoader);
+		}
+
+	}
+
+	private class PortalInvocationHandler implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String methodName = method.getName();
+
+			if (methodName.equals("getGlobalLibDir")) {
+				return _globalLibDir.getPath() + "/";
+			}
+			else if (methodName.equals("getPortalLibDir")) {
+				return _portalWebDir.getPath() + "/WEB-INF/lib/";
+			}
+			else if (methodName.equals("getPortalWebDir")) {
+				return _portalWebDir.getPath() + "/";
+			}
+			else if (methodName.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			else if (methodName.equals("equals")) {
+				return proxy == args[0];
+			}
+			else if (methodName.equals("toString")) {
+				return "Benchmark portal " + _portalWebDir;
+			}
+
+			throw new UnsupportedOperationException(
+				"Portal." + methodName + " is not supported by the benchmark");
+		}
+
+	}
+
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps the original versions of the portal files overridden by Ext Plugins.
+ * Every unique content is stored once as a blob named by its digest, and an
+ * index maps portal relative paths to the blobs. The index is an append only
+ * log, so a crash never loses a backup whose blob has already been written.
+ *
+ * <p>
+ * Backups left by older versions as <code>.beforeExt</code> files next to the
+ * portal files are moved into the store the first time they are needed.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtBackupStore {
+
+	public static final String LEGACY_BACKUP_EXT = ".beforeExt";
+
+	public static synchronized ExtBackupStore getInstance(String portalWebDir)
+		throws IOException {
+
+		ExtBackupStore backupStore = _backupStores.get(portalWebDir);
+
+		if (backupStore == null) {
+			backupStore = new ExtBackupStore(portalWebDir);
+
+			_backupStores.put(portalWebDir, backupStore);
+		}
+
+		return backupStore;
+	}
+
+	/**
+	 * Stores the current content of the file as the backup of the path unless
+	 * the path already has one. The content is copied into the store and
+	 * recorded in the index before the file is removed, so a crash in between
+	 * leaves the file in place and the backup is simply taken again.
+	 */
+	public void backup(String path, File file, boolean move)
+		throws IOException {
+
+		if (hasBackup(path) || !file.exists()) {
+			return;
+		}
+
+		String digest = ExtDeployManifest.digest(file);
+		long lastModified = file.lastModified();
+
+		_writeBlob(file, digest);
+
+		_putEntry(path, new Entry(digest, lastModified));
+
+		if (move) {
+			file.delete();
+		}
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Backed up " + path + " as " + digest);
+		}
+	}
+
+	/**
+	 * Returns the stored backup of the path. The returned file must not be
+	 * modified.
+	 */
+	public File getBackupFile(String path) throws IOException {
+		Entry entry = _getEntry(path);
+
+		if (entry == null) {
+			return null;
+		}
+
+		return _getBlobFile(entry.getDigest());
+	}
+
+	public long getBackupLastModified(String path) throws IOException {
+		Entry entry = _getEntry(path);
+
+		if (entry == null) {
+			return 0;
+		}
+
+		return entry.getLastModified();
+	}
+
+	public boolean hasBackup(String path) throws IOException {
+		if (_getEntry(path) != null) {
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Copies the backup of the path to the destination, keeping the original
+	 * modification time.
+	 */
+	public void copyBackup(String path, File destination) throws IOException {
+		Entry entry = _getEntry(path);
+
+		if (entry == null) {
+			throw new IOException("No backup of " + path);
+		}
+
+		ExtFileUtil.copyFile(_getBlobFile(entry.getDigest()), destination);
+
+		destination.setLastModified(entry.getLastModified());
+
+		if (_log.isDebugEnabled()) {
+			_log.debug(
+				"Copied backup " + entry.getDigest() + " of " + path + " to " +
+					destination);
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the file already has the backed up content
+	 * of the path, or if the path has no backup.
+	 */
+	public boolean isRestored(String path, File file) throws IOException {
+		Entry entry = _getEntry(path);
+
+		if (entry == null) {
+			return true;
+		}
+
+		File blobFile = _getBlobFile(entry.getDigest());
+
+		if (!file.exists() || (file.length() != blobFile.length())) {
+			return false;
+		}
+
+		if (file.lastModified() == entry.getLastModified()) {
+			return true;
+		}
+
+		if (entry.getDigest().equals(ExtDeployManifest.digest(file))) {
+			file.setLastModified(entry.getLastModified());
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Copies the backup of the path over the file. Nothing is written when the
+	 * file already has the backed up content.
+	 */
+	public boolean restore(String path, File file) throws IOException {
+		if (isRestored(path, file)) {
+			return false;
+		}
+
+		copyBackup(path, file);
+
+		return true;
+	}
+
+	protected ExtBackupStore(String portalWebDir) throws IOException {
+		_portalWebDir = portalWebDir;
+
+		_storeDir = new File(portalWebDir, "WEB-INF/ext-backup");
+		_indexFile = new File(_storeDir, "index.properties");
+
+		_readIndex();
+	}
+
+	private File _getBlobFile(String digest) {
+		return new File(
+			_storeDir, "blobs/" + digest.substring(0, 2) + "/" + digest);
+	}
+
+	private synchronized Entry _getEntry(String path) throws IOException {
+		Entry entry = _index.get(path);
+
+		if (entry != null) {
+			return entry;
+		}
+
+		File legacyBackupFile = new File(
+			_portalWebDir, path + LEGACY_BACKUP_EXT);
+
+		if (legacyBackupFile.exists()) {
+			String digest = ExtDeployManifest.digest(legacyBackupFile);
+
+			entry = new Entry(digest, legacyBackupFile.lastModified());
+
+			_writeBlob(legacyBackupFile, digest);
+
+			_putEntry(path, entry);
+
+			legacyBackupFile.delete();
+		}
+
+		return entry;
+	}
+
+	private synchronized void _putEntry(String path, Entry entry)
+		throws IOException {
+
+		_index.put(path, entry);
+
+		Properties properties = new Properties();
+
+		properties.setProperty(path, entry.toString());
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		properties.store(baos, null);
+
+		String line = baos.toString("ISO-8859-1");
+
+		// Drop the time stamp comment written by Properties.store
+
+		line = line.substring(line.indexOf('\n') + 1);
+
+		_indexFile.getParentFile().mkdirs();
+
+		FileOutputStream fos = new FileOutputStream(_indexFile, true);
+
+		try {
+			fos.write(line.getBytes("ISO-8859-1"));
+
+			// The entry must be durable before the original is removed
+
+			fos.getFD().sync();
+		}
+		finally {
+			fos.close();
+		}
+	}
+
+	private void _readIndex() throws IOException {
+		if (!_indexFile.exists()) {
+			return;
+		}
+
+		Properties properties = new Properties();
+
+		InputStream is = new FileInputStream(_indexFile);
+
+		try {
+			properties.load(is);
+		}
+		finally {
+			is.close();
+		}
+
+		for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+			_index.put(
+				(String)entry.getKey(),
+				Entry.valueOf((String)entry.getValue()));
+		}
+	}
+
+	private void _writeBlob(File file, String digest) throws IOException {
+		File blobFile = _getBlobFile(digest);
+
+		if (blobFile.exists()) {
+			return;
+		}
+
+		File tempFile = new File(
+			blobFile.getPath() + "." + Thread.currentThread().getId() +
+				".tmp");
+
+		ExtFileUtil.copyFile(file, tempFile);
+
+		ExtFileUtil.sync(tempFile);
+
+		ExtFileUtil.replaceFile(tempFile, blobFile);
+	}
+
+	private static Log _log = LogFactoryUtil.getLog(ExtBackupStore.class);
+
+	private static Map<String, ExtBackupStore> _backupStores =
+		new HashMap<String, ExtBackupStore>();
+
+	private Map<String, Entry> _index = new HashMap<String, Entry>();
+	private File _indexFile;
+	private String _portalWebDir;
+	private File _storeDir;
+
+	private static class Entry {
+
+		public static Entry valueOf(String value) {
+			int pos = value.indexOf(':');
+
+			return new Entry(
+				value.substring(0, pos),
+				Long.parseLong(value.substring(pos + 1)));
+		}
+
+		public Entry(String digest, long lastModified) {
+			_digest = digest;
+			_lastModified = lastModified;
+		}
+
+		public String getDigest() {
+			return _digest;
+		}
+
+		public long getLastModified() {
+			return _lastModified;
+		}
+
+		public String toString() {
+			return _digest + ":" + _lastModified;
+		}
+
+		private String _digest;
+		private long _lastModified;
+
+	}
+
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.FileUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write ahead journal of an Ext Plugin install, redeploy, or uninstall.
+ *
+ * <p>
+ * New file contents are written into a shadow directory and removals are
+ * only recorded. Nothing in the portal changes until {@link #commit()}, which
+ * marks the journal as committed and then renames the shadow files over their
+ * targets. A journal found at startup is rolled forward if it was committed
+ * and discarded otherwise, see {@link #recover(String)}.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtDeployJournal {
+
+	public static ExtDeployJournal begin(
+			String portalWebDir, String servletContextName)
+		throws IOException {
+
+		File journalDir = new File(
+			_getJournalsDir(portalWebDir),
+			System.currentTimeMillis() + "-" + servletContextName);
+
+		ExtDeployJournal journal = new ExtDeployJournal(
+			portalWebDir, journalDir);
+
+		journal._name = servletContextName;
+
+		journal._shadowDir.mkdirs();
+
+		journal._append(_BEGIN + "\t" + servletContextName);
+
+		return journal;
+	}
+
+	/**
+	 * Completes every journal left behind by a crashed deployment. Committed
+	 * journals are applied again, the others are discarded.
+	 */
+	public static void recover(String portalWebDir) throws IOException {
+		File[] journalDirs = _getJournalsDir(portalWebDir).listFiles();
+
+		if (journalDirs == null) {
+			return;
+		}
+
+		Arrays.sort(journalDirs);
+
+		for (File journalDir : journalDirs) {
+			ExtDeployJournal journal = new ExtDeployJournal(
+				portalWebDir, journalDir);
+
+			List<String[]> records = journal._readRecords();
+
+			if (journal._isCommitted(records)) {
+				_log.warn("Rolling forward interrupted deployment " + journalDir);
+
+				journal._apply(records);
+			}
+			else {
+				_log.warn("Rolling back interrupted deployment " + journalDir);
+			}
+
+			FileUtil.deltree(journalDir);
+		}
+	}
+
+	public synchronized void commit() throws IOException {
+		_checkOpen();
+
+		// The shadow files must be durable before the commit record is, or a
+		// crash could roll forward files the disk never received
+
+		for (File shadowFile : _shadowFiles.values()) {
+			if (shadowFile.exists()) {
+				ExtFileUtil.sync(shadowFile);
+			}
+		}
+
+		_append(_COMMIT);
+
+		_committed = true;
+
+		// Every step can be repeated, so a failed apply is retried right away
+		// instead of leaving half applied files until the next start
+
+		List<String[]> records = _readRecords();
+
+		for (int i = 1;; i++) {
+			try {
+				_apply(records);
+
+				break;
+			}
+			catch (IOException ioe) {
+				if (i >= _APPLY_ATTEMPTS) {
+					throw ioe;
+				}
+
+				_log.warn("Retrying to apply " + _journalDir, ioe);
+			}
+		}
+
+		FileUtil.deltree(_journalDir);
+
+		_closed = true;
+	}
+
+	/**
+	 * Records the removal of the target, done when the journal is committed.
+	 */
+	public synchronized void delete(File target) throws IOException {
+		_checkOpen();
+
+		_deletedPaths.add(target.getAbsolutePath());
+		_shadowFiles.remove(target.getAbsolutePath());
+
+		_append(_DELETE + "\t" + target.getAbsolutePath());
+	}
+
+	/**
+	 * Returns the file holding the content the target will have after the
+	 * commit, or <code>null</code> if the target will be deleted.
+	 */
+	public synchronized File getFile(File target) {
+		String targetPath = target.getAbsolutePath();
+
+		File shadowFile = _shadowFiles.get(targetPath);
+
+		if (shadowFile != null) {
+			return shadowFile;
+		}
+
+		if (_deletedPaths.contains(targetPath)) {
+			return null;
+		}
+
+		return target;
+	}
+
+	/**
+	 * Returns the name of the plugin, or of the batch of plugins, being
+	 * deployed.
+	 */
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * Returns <code>true</code> if the commit record has been written. A
+	 * committed journal can't be rolled back anymore, it's completed by
+	 * {@link #recover(String)} if applying it failed.
+	 */
+	public synchronized boolean isCommitted() {
+		return _committed;
+	}
+
+	public synchronized void rollback() {
+		if (_closed || _committed) {
+			return;
+		}
+
+		FileUtil.deltree(_journalDir);
+
+		_closed = true;
+	}
+
+	public File stage(File target) throws IOException {
+		return stage(target, null);
+	}
+
+	/**
+	 * Returns the shadow file the new content of the target has to be written
+	 * to. When a backup path is given, the current target is moved into the
+	 * backup store under that path on commit, right before it's replaced.
+	 */
+	public synchronized File stage(File target, String backupPath)
+		throws IOException {
+
+		_checkOpen();
+
+		String targetPath = target.getAbsolutePath();
+
+		File shadowFile = _shadowFiles.get(targetPath);
+
+		if (shadowFile != null) {
+			return shadowFile;
+		}
+
+		shadowFile = new File(_shadowDir, String.valueOf(_shadowCount++));
+
+		_deletedPaths.remove(targetPath);
+
+		_shadowFiles.put(targetPath, shadowFile);
+
+		if (backupPath == null) {
+			backupPath = "";
+		}
+
+		_append(
+			_WRITE + "\t" + shadowFile.getName() + "\t" + targetPath + "\t" +
+				backupPath);
+
+		return shadowFile;
+	}
+
+	protected ExtDeployJournal(String portalWebDir, File journalDir) {
+		_portalWebDir = portalWebDir;
+		_journalDir = journalDir;
+
+		_journalFile = new File(journalDir, "journal.log");
+		_shadowDir = new File(journalDir, "shadow");
+	}
+
+	private static File _getJournalsDir(String portalWebDir) {
+		return new File(portalWebDir, "WEB-INF/ext-journal");
+	}
+
+	private void _append(String record) throws IOException {
+		FileOutputStream fos = new FileOutputStream(_journalFile, true);
+
+		try {
+			fos.write((record + "\n").getBytes(_ENCODING));
+
+			if (record.equals(_COMMIT)) {
+				fos.getFD().sync();
+			}
+		}
+		finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Applies the records in their order. Every step can be repeated, so a
+	 * journal interrupted while being applied is simply applied again.
+	 */
+	private void _apply(List<String[]> records) throws IOException {
+		ExtBackupStore backupStore = null;
+
+		for (String[] record : records) {
+			if (record[0].equals(_WRITE)) {
+				File shadowFile = new File(_shadowDir, record[1]);
+
+				if (!shadowFile.exists()) {
+					continue;
+				}
+
+				File target = new File(record[2]);
+
+				if ((record.length > 3) && (record[3].length() > 0)) {
+					if (backupStore == null) {
+						backupStore = ExtBackupStore.getInstance(_portalWebDir);
+					}
+
+					backupStore.backup(record[3], target, true);
+				}
+
+				ExtFileUtil.moveFile(shadowFile, target);
+			}
+			else if (record[0].equals(_DELETE)) {
+				new File(record[1]).delete();
+			}
+		}
+	}
+
+	private void _checkOpen() {
+		if (_closed) {
+			throw new IllegalStateException(
+				"Journal " + _journalDir + " is closed");
+		}
+	}
+
+	private boolean _isCommitted(List<String[]> records) {
+		for (String[] record : records) {
+			if (record[0].equals(_COMMIT)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private List<String[]> _readRecords() throws IOException {
+		List<String[]> records = new ArrayList<String[]>();
+
+		if (!_journalFile.exists()) {
+			return records;
+		}
+
+		BufferedReader bufferedReader = new BufferedReader(
+			new InputStreamReader(
+				new FileInputStream(_journalFile), _ENCODING));
+
+		try {
+			String line = null;
+
+			while ((line = bufferedReader.readLine()) != null) {
+				if (line.length() > 0) {
+					records.add(line.split("\t", -1));
+				}
+			}
+		}
+		finally {
+			bufferedReader.close();
+		}
+
+		return records;
+	}
+
+	private static final int _APPLY_ATTEMPTS = 3;
+
+	private static final String _BEGIN = "BEGIN";
+
+	private static final String _COMMIT = "COMMIT";
+
+	private static final String _DELETE = "DELETE";
+
+	private static final String _ENCODING = "UTF-8";
+
+	private static final String _WRITE = "WRITE";
+
+	private static Log _log = LogFactoryUtil.getLog(ExtDeployJournal.class);
+
+	private boolean _closed;
+	private boolean _committed;
+	private Set<String> _deletedPaths = new HashSet<String>();
+	private File _journalDir;
+	private File _journalFile;
+	private String _name;
+	private String _portalWebDir;
+	private int _shadowCount;
+	private File _shadowDir;
+	private Map<String, File> _shadowFiles = new HashMap<String, File>();
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps content digests of the files an Ext plugin installed into the portal,
+ * so a redeploy can tell which of them really changed.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtDeployManifest {
+
+	public static final String KEY_FILE = "file/";
+
+	public static final String KEY_JAR = "jar/";
+
+	public static final String KEY_MERGED = "merged/";
+
+	public static String digest(File file) throws IOException {
+		MessageDigest messageDigest = _getMessageDigest();
+
+		InputStream is = new FileInputStream(file);
+
+		try {
+			byte[] buffer = new byte[_BUFFER_SIZE];
+
+			int len = 0;
+
+			while ((len = is.read(buffer)) != -1) {
+				messageDigest.update(buffer, 0, len);
+			}
+		}
+		finally {
+			is.close();
+		}
+
+		return _toHex(messageDigest.digest());
+	}
+
+	public static String digest(File[] files) throws IOException {
+		File[] sortedFiles = files.clone();
+
+		Arrays.sort(sortedFiles, new Comparator<File>() {
+
+			public int compare(File file1, File file2) {
+				return file1.getName().compareTo(file2.getName());
+			}
+
+		});
+
+		MessageDigest messageDigest = _getMessageDigest();
+
+		for (File file : sortedFiles) {
+			if (file.isDirectory()) {
+				continue;
+			}
+
+			messageDigest.update(file.getName().getBytes("UTF-8"));
+			messageDigest.update(digest(file).getBytes("UTF-8"));
+		}
+
+		return _toHex(messageDigest.digest());
+	}
+
+	public static ExtDeployManifest read(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		ExtDeployManifest manifest = new ExtDeployManifest();
+
+		InputStream is = new FileInputStream(file);
+
+		try {
+			manifest._digests.load(is);
+		}
+		finally {
+			is.close();
+		}
+
+		return manifest;
+	}
+
+	public String getDigest(String key) {
+		return _digests.getProperty(key);
+	}
+
+	public Set<String> getKeys(String prefix) {
+		Set<String> keys = new TreeSet<String>();
+
+		for (Object key : _digests.keySet()) {
+			String keyString = (String)key;
+
+			if (keyString.startsWith(prefix)) {
+				keys.add(keyString.substring(prefix.length()));
+			}
+		}
+
+		return keys;
+	}
+
+	public boolean isChanged(ExtDeployManifest oldManifest, String key) {
+		String digest = getDigest(key);
+		String oldDigest = null;
+
+		if (oldManifest != null) {
+			oldDigest = oldManifest.getDigest(key);
+		}
+
+		if (digest == null) {
+			return oldDigest != null;
+		}
+
+		return !digest.equals(oldDigest);
+	}
+
+	public void putDigest(String key, String digest) {
+		if (digest == null) {
+			_digests.remove(key);
+		}
+		else {
+			_digests.setProperty(key, digest);
+		}
+	}
+
+	public void write(File file) throws IOException {
+		OutputStream os = new FileOutputStream(file);
+
+		try {
+			_digests.store(os, "Ext Plugin deploy manifest");
+		}
+		finally {
+			os.close();
+		}
+	}
+
+	private static MessageDigest _getMessageDigest() {
+		try {
+			return MessageDigest.getInstance(_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		}
+	}
+
+	private static String _toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = _HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+			chars[i * 2 + 1] = _HEX_DIGITS[bytes[i] & 0x0f];
+		}
+
+		return new String(chars);
+	}
+
+	private static final String _ALGORITHM = "MD5";
+
+	private static final int _BUFFER_SIZE = 8192;
+
+	private static final char[] _HEX_DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+		'e', 'f'
+	};
+
+	private Properties _digests = new Properties();
+
+}
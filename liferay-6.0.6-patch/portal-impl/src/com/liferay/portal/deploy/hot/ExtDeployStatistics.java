@@ -0,0 +1,505 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.kernel.util.StringBundler;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the wall time, bytes, and files of every phase of Ext Plugin
+ * deploys. The last values are kept per plugin and phase, and the durations of
+ * every phase are summed up in a histogram. Each finished phase is also logged
+ * as one line of key=value pairs. The portal registers the statistics in the
+ * platform MBean server as {@link #OBJECT_NAME} when it starts, and
+ * unregisters them when it's destroyed.
+ *
+ * <p>
+ * A phase is bound to the thread that started it. Bytes and files written on
+ * that thread are added to all of its phases that haven't ended yet, so a
+ * phase includes the phases nested in it. Worker threads join the phase of
+ * the thread that handed them work with {@link #setCurrentPhase(Phase)}.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtDeployStatistics implements ExtDeployStatisticsMBean {
+
+	public static final String OBJECT_NAME =
+		"com.liferay.portal:type=ExtDeployStatistics";
+
+	/**
+	 * Adds a file written by the current thread to its open phases.
+	 */
+	public static void addFile(long bytes) {
+		Phase phase = _currentPhase.get();
+
+		while (phase != null) {
+			phase._addFile(bytes);
+
+			phase = phase._parentPhase;
+		}
+	}
+
+	public static Phase getCurrentPhase() {
+		return _currentPhase.get();
+	}
+
+	public static ExtDeployStatistics getInstance() {
+		return _instance;
+	}
+
+	public static void register() {
+		try {
+			MBeanServer mBeanServer =
+				ManagementFactory.getPlatformMBeanServer();
+
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+
+			// The portal may have been redeployed in the same JVM
+
+			if (mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+
+			mBeanServer.registerMBean(_instance, objectName);
+		}
+		catch (Exception e) {
+			_log.warn("Unable to register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * Makes the phase the current phase of this thread, so the phases it
+	 * starts are nested in it. Pooled threads have to reset it to
+	 * <code>null</code> when their work is done.
+	 */
+	public static void setCurrentPhase(Phase phase) {
+		if (phase == null) {
+			_currentPhase.remove();
+		}
+		else {
+			_currentPhase.set(phase);
+		}
+	}
+
+	public static Phase startPhase(String servletContextName, String name) {
+		Phase phase = new Phase(
+			servletContextName, name, _currentPhase.get());
+
+		_currentPhase.set(phase);
+
+		return phase;
+	}
+
+	public static void unregister() {
+		try {
+			MBeanServer mBeanServer =
+				ManagementFactory.getPlatformMBeanServer();
+
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+
+			if (mBeanServer.isRegistered(objectName)) {
+				mBeanServer.unregisterMBean(objectName);
+			}
+		}
+		catch (Exception e) {
+			_log.warn("Unable to unregister " + OBJECT_NAME, e);
+		}
+	}
+
+	public long[] getHistogramBounds() {
+		return _HISTOGRAM_BOUNDS.clone();
+	}
+
+	public long getLastRedeployDuration() {
+		return ExtHotDeployListener.getRedeployScheduler().getLastRunDuration();
+	}
+
+	public String getLastRedeployServletContextName() {
+		ExtRedeployScheduler redeployScheduler =
+			ExtHotDeployListener.getRedeployScheduler();
+
+		return redeployScheduler.getLastRunServletContextName();
+	}
+
+	public long getLastRedeployTime() {
+		return ExtHotDeployListener.getRedeployScheduler().getLastRunTime();
+	}
+
+	public long getPhaseBytes(String phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase);
+
+		if (phaseHistogram == null) {
+			return 0;
+		}
+
+		return phaseHistogram.getBytes();
+	}
+
+	public long getPhaseCount(String phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase);
+
+		if (phaseHistogram == null) {
+			return 0;
+		}
+
+		return phaseHistogram.getCount();
+	}
+
+	public long getPhaseFiles(String phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase);
+
+		if (phaseHistogram == null) {
+			return 0;
+		}
+
+		return phaseHistogram.getFiles();
+	}
+
+	public long[] getPhaseHistogram(String phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase);
+
+		if (phaseHistogram == null) {
+			return new long[_HISTOGRAM_BOUNDS.length + 1];
+		}
+
+		return phaseHistogram.getBuckets();
+	}
+
+	public long getPhaseMaxTime(String phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase);
+
+		if (phaseHistogram == null) {
+			return 0;
+		}
+
+		return phaseHistogram.getMaxTime();
+	}
+
+	public String[] getPhaseNames() {
+		Set<String> phaseNames = new TreeSet<String>(_phaseHistograms.keySet());
+
+		return phaseNames.toArray(new String[phaseNames.size()]);
+	}
+
+	public long getPhaseTime(String phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase);
+
+		if (phaseHistogram == null) {
+			return 0;
+		}
+
+		return phaseHistogram.getTime();
+	}
+
+	public String[] getPluginNames() {
+		Set<String> pluginNames = new TreeSet<String>(_pluginPhases.keySet());
+
+		return pluginNames.toArray(new String[pluginNames.size()]);
+	}
+
+	public long getPluginPhaseBytes(String servletContextName, String phase) {
+		Phase pluginPhase = _getPluginPhase(servletContextName, phase);
+
+		if (pluginPhase == null) {
+			return 0;
+		}
+
+		return pluginPhase.getBytes();
+	}
+
+	public long getPluginPhaseFiles(String servletContextName, String phase) {
+		Phase pluginPhase = _getPluginPhase(servletContextName, phase);
+
+		if (pluginPhase == null) {
+			return 0;
+		}
+
+		return pluginPhase.getFiles();
+	}
+
+	public long getPluginPhaseTime(String servletContextName, String phase) {
+		Phase pluginPhase = _getPluginPhase(servletContextName, phase);
+
+		if (pluginPhase == null) {
+			return 0;
+		}
+
+		return pluginPhase.getTime();
+	}
+
+	public int getRedeployQueueDepth() {
+		return ExtHotDeployListener.getRedeployScheduler().getQueueDepth();
+	}
+
+	public String getReport() {
+		StringBundler sb = new StringBundler();
+
+		sb.append("phase\tcount\ttime\tmax\tbytes\tfiles\thistogram ");
+		sb.append(Arrays.toString(_HISTOGRAM_BOUNDS));
+
+		for (String phaseName : getPhaseNames()) {
+			PhaseHistogram phaseHistogram = _phaseHistograms.get(phaseName);
+
+			sb.append("\n");
+			sb.append(phaseName);
+			sb.append("\t");
+			sb.append(phaseHistogram.getCount());
+			sb.append("\t");
+			sb.append(phaseHistogram.getTime());
+			sb.append("\t");
+			sb.append(phaseHistogram.getMaxTime());
+			sb.append("\t");
+			sb.append(phaseHistogram.getBytes());
+			sb.append("\t");
+			sb.append(phaseHistogram.getFiles());
+			sb.append("\t");
+			sb.append(Arrays.toString(phaseHistogram.getBuckets()));
+		}
+
+		for (String pluginName : getPluginNames()) {
+			Map<String, Phase> phases = _pluginPhases.get(pluginName);
+
+			for (String phaseName : new TreeSet<String>(phases.keySet())) {
+				sb.append("\n");
+				sb.append(phases.get(phaseName));
+			}
+		}
+
+		return sb.toString();
+	}
+
+	public void reset() {
+		_phaseHistograms.clear();
+		_pluginPhases.clear();
+	}
+
+	protected ExtDeployStatistics() {
+	}
+
+	protected void record(Phase phase) {
+		PhaseHistogram phaseHistogram = _phaseHistograms.get(phase.getName());
+
+		if (phaseHistogram == null) {
+			phaseHistogram = new PhaseHistogram();
+
+			PhaseHistogram previousPhaseHistogram =
+				_phaseHistograms.putIfAbsent(phase.getName(), phaseHistogram);
+
+			if (previousPhaseHistogram != null) {
+				phaseHistogram = previousPhaseHistogram;
+			}
+		}
+
+		phaseHistogram.add(phase);
+
+		ConcurrentMap<String, Phase> phases = _pluginPhases.get(
+			phase.getServletContextName());
+
+		if (phases == null) {
+			phases = new ConcurrentHashMap<String, Phase>();
+
+			ConcurrentMap<String, Phase> previousPhases =
+				_pluginPhases.putIfAbsent(
+					phase.getServletContextName(), phases);
+
+			if (previousPhases != null) {
+				phases = previousPhases;
+			}
+		}
+
+		phases.put(phase.getName(), phase);
+
+		if (_log.isInfoEnabled()) {
+			_log.info(phase.toString());
+		}
+	}
+
+	private Phase _getPluginPhase(String servletContextName, String phase) {
+		Map<String, Phase> phases = _pluginPhases.get(servletContextName);
+
+		if (phases == null) {
+			return null;
+		}
+
+		return phases.get(phase);
+	}
+
+	private static final long[] _HISTOGRAM_BOUNDS = {
+		10, 100, 1000, 10000, 60000
+	};
+
+	private static Log _log = LogFactoryUtil.getLog(ExtDeployStatistics.class);
+
+	private static ThreadLocal<Phase> _currentPhase = new ThreadLocal<Phase>();
+	private static ExtDeployStatistics _instance = new ExtDeployStatistics();
+
+	private ConcurrentMap<String, PhaseHistogram> _phaseHistograms =
+		new ConcurrentHashMap<String, PhaseHistogram>();
+	private ConcurrentMap<String, ConcurrentMap<String, Phase>> _pluginPhases =
+		new ConcurrentHashMap<String, ConcurrentMap<String, Phase>>();
+
+	public static class Phase {
+
+		public void end() {
+			if (_time >= 0) {
+				return;
+			}
+
+			_time = System.currentTimeMillis() - _startTime;
+
+			// Don't leave an entry behind on pooled threads
+
+			setCurrentPhase(_parentPhase);
+
+			_instance.record(this);
+		}
+
+		public synchronized long getBytes() {
+			return _bytes;
+		}
+
+		public synchronized long getFiles() {
+			return _files;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		public String getServletContextName() {
+			return _servletContextName;
+		}
+
+		public long getTime() {
+			return _time;
+		}
+
+		public String toString() {
+			StringBundler sb = new StringBundler(10);
+
+			sb.append("plugin=");
+			sb.append(_servletContextName);
+			sb.append(" phase=");
+			sb.append(_name);
+			sb.append(" time=");
+			sb.append(_time);
+			sb.append(" bytes=");
+			sb.append(_bytes);
+			sb.append(" files=");
+			sb.append(_files);
+
+			return sb.toString();
+		}
+
+		private Phase(
+			String servletContextName, String name, Phase parentPhase) {
+
+			_servletContextName = servletContextName;
+			_name = name;
+			_parentPhase = parentPhase;
+
+			_startTime = System.currentTimeMillis();
+		}
+
+		// Phases are shared with the worker threads of a pipeline
+
+		private synchronized void _addFile(long bytes) {
+			_bytes += bytes;
+			_files++;
+		}
+
+		private long _bytes;
+		private long _files;
+		private String _name;
+		private Phase _parentPhase;
+		private String _servletContextName;
+		private long _startTime;
+		private long _time = -1;
+
+	}
+
+	private static class PhaseHistogram {
+
+		public synchronized void add(Phase phase) {
+			long time = phase.getTime();
+
+			int i = 0;
+
+			while ((i < _HISTOGRAM_BOUNDS.length) &&
+				   (time >= _HISTOGRAM_BOUNDS[i])) {
+
+				i++;
+			}
+
+			_buckets[i]++;
+
+			_bytes += phase.getBytes();
+			_count++;
+			_files += phase.getFiles();
+			_time += time;
+
+			if (time > _maxTime) {
+				_maxTime = time;
+			}
+		}
+
+		public synchronized long[] getBuckets() {
+			return _buckets.clone();
+		}
+
+		public synchronized long getBytes() {
+			return _bytes;
+		}
+
+		public synchronized long getCount() {
+			return _count;
+		}
+
+		public synchronized long getFiles() {
+			return _files;
+		}
+
+		public synchronized long getMaxTime() {
+			return _maxTime;
+		}
+
+		public synchronized long getTime() {
+			return _time;
+		}
+
+		private long[] _buckets = new long[_HISTOGRAM_BOUNDS.length + 1];
+		private long _bytes;
+		private long _count;
+		private long _files;
+		private long _maxTime;
+		private long _time;
+
+	}
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+/**
+ * @author Tomas Polesovsky
+ */
+public interface ExtDeployStatisticsMBean {
+
+	public long[] getHistogramBounds();
+
+	public long getLastRedeployDuration();
+
+	public String getLastRedeployServletContextName();
+
+	public long getLastRedeployTime();
+
+	public long getPhaseBytes(String phase);
+
+	public long getPhaseCount(String phase);
+
+	public long getPhaseFiles(String phase);
+
+	public long[] getPhaseHistogram(String phase);
+
+	public long getPhaseMaxTime(String phase);
+
+	public String[] getPhaseNames();
+
+	public long getPhaseTime(String phase);
+
+	public String[] getPluginNames();
+
+	public long getPluginPhaseBytes(String servletContextName, String phase);
+
+	public long getPluginPhaseFiles(String servletContextName, String phase);
+
+	public long getPluginPhaseTime(String servletContextName, String phase);
+
+	public int getRedeployQueueDepth();
+
+	public String getReport();
+
+	public void reset();
+
+}
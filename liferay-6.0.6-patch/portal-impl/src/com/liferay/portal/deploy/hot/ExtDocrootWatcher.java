@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.util.ExtRegistry;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Watches the ext-web/docroot directories of registered Ext Plugins during
+ * development. A changed file that isn't merged is copied straight over the
+ * portal file. Added or removed files and changed merged files schedule an
+ * incremental redeploy of the plugin.
+ *
+ * <p>
+ * The directories are polled because the portal runs on Java 5, which has no
+ * file system notifications. Only the size and modification time of the files
+ * are compared, so a scan is cheap.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtDocrootWatcher implements Runnable {
+
+	public ExtDocrootWatcher(ExtHotDeployListener listener, long interval) {
+		_listener = listener;
+		_interval = interval;
+	}
+
+	public void run() {
+		try {
+			scan();
+		}
+		catch (Throwable t) {
+			_log.error("Unable to scan Ext Plugin docroots", t);
+		}
+	}
+
+	public void start() {
+		_scheduledExecutorService = new ScheduledThreadPoolExecutor(
+			1,
+			new ThreadFactory() {
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(
+						runnable, "Ext Plugin Docroot Watcher");
+
+					thread.setDaemon(true);
+
+					return thread;
+				}
+
+			});
+
+		_scheduledExecutorService.scheduleWithFixedDelay(
+			this, _interval, _interval, TimeUnit.MILLISECONDS);
+
+		if (_log.isInfoEnabled()) {
+			_log.info(
+				"Watching Ext Plugin docroots every " + _interval + " ms");
+		}
+	}
+
+	public void stop() {
+		if (_scheduledExecutorService != null) {
+			_scheduledExecutorService.shutdownNow();
+		}
+	}
+
+	protected void scan() throws Exception {
+		Set<String> servletContextNames = new HashSet<String>();
+
+		for (ServletContext servletContext : ExtRegistry.getServletContexts()) {
+
+			// Plugins registered from their ext-*.xml at startup have no
+			// servlet context until they're deployed
+
+			if (servletContext == null) {
+				continue;
+			}
+
+			String servletContextName = servletContext.getServletContextName();
+
+			String docroot = servletContext.getRealPath(_DOCROOT);
+
+			if (docroot == null) {
+				continue;
+			}
+
+			servletContextNames.add(servletContextName);
+
+			Map<String, String> files = new HashMap<String, String>();
+
+			_scan(new File(docroot), _DOCROOT_PREFIX, files);
+
+			Map<String, String> previousFiles = _files.put(
+				servletContextName, files);
+
+			if (previousFiles != null) {
+				_sync(servletContext, previousFiles, files);
+			}
+		}
+
+		_files.keySet().retainAll(servletContextNames);
+	}
+
+	private void _scan(File dir, String path, Map<String, String> files) {
+		File[] children = dir.listFiles();
+
+		if (children == null) {
+			return;
+		}
+
+		for (File child : children) {
+			String childPath = path + child.getName();
+
+			if (child.isDirectory()) {
+				_scan(child, childPath + "/", files);
+			}
+			else {
+				files.put(
+					childPath, child.lastModified() + ":" + child.length());
+			}
+		}
+	}
+
+	private void _sync(
+			ServletContext servletContext, Map<String, String> previousFiles,
+			Map<String, String> files)
+		throws Exception {
+
+		boolean redeploy = false;
+
+		List<String> changedFiles = new ArrayList<String>();
+
+		for (Map.Entry<String, String> entry : files.entrySet()) {
+			String file = entry.getKey();
+
+			String previousSignature = previousFiles.get(file);
+
+			if (previousSignature == null) {
+				redeploy = true;
+			}
+			else if (!previousSignature.equals(entry.getValue())) {
+
+				// The merged file patterns use the platform separator
+
+				if (ExtRegistry.isMergedFile(
+						file.replace('/', File.separatorChar))) {
+
+					redeploy = true;
+				}
+				else {
+					changedFiles.add(file);
+				}
+			}
+		}
+
+		if (!files.keySet().containsAll(previousFiles.keySet())) {
+			redeploy = true;
+		}
+
+		// A redeploy installs the changed files as well and keeps the
+		// registry and the deploy manifest up to date
+
+		if (redeploy) {
+			_listener.scheduleRedeploy(servletContext);
+
+			return;
+		}
+
+		for (String file : changedFiles) {
+			_listener.syncWebFile(servletContext, file);
+		}
+	}
+
+	private static final String _DOCROOT = "/WEB-INF/ext-web/docroot";
+
+	private static final String _DOCROOT_PREFIX = "ext-web/docroot/";
+
+	private static Log _log = LogFactoryUtil.getLog(ExtDocrootWatcher.class);
+
+	private Map<String, Map<String, String>> _files =
+		new HashMap<String, Map<String, String>>();
+	private long _interval;
+	private ExtHotDeployListener _listener;
+	private ScheduledExecutorService _scheduledExecutorService;
+
+}
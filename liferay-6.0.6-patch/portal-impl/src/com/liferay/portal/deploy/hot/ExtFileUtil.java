@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Moves Ext Plugin files with channel transfers, so the file content doesn't
+ * have to pass through the Java heap.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtFileUtil {
+
+	public static long copyFile(File source, File destination)
+		throws IOException {
+
+		_mkParentDirs(destination);
+
+		FileInputStream fis = new FileInputStream(source);
+
+		try {
+			FileOutputStream fos = new FileOutputStream(destination);
+
+			try {
+				FileChannel sourceChannel = fis.getChannel();
+				FileChannel destinationChannel = fos.getChannel();
+
+				long size = sourceChannel.size();
+				long position = 0;
+
+				while (position < size) {
+					position += sourceChannel.transferTo(
+						position, Math.min(_MAX_TRANSFER_SIZE, size - position),
+						destinationChannel);
+				}
+
+				ExtDeployStatistics.addFile(size);
+
+				return size;
+			}
+			finally {
+				fos.close();
+			}
+		}
+		finally {
+			fis.close();
+		}
+	}
+
+	public static void copyFile(String source, String destination)
+		throws IOException {
+
+		copyFile(new File(source), new File(destination));
+	}
+
+	public static boolean moveFile(File source, File destination)
+		throws IOException {
+
+		if (!source.exists()) {
+			return false;
+		}
+
+		_mkParentDirs(destination);
+
+		replaceFile(source, destination);
+
+		return true;
+	}
+
+	/**
+	 * Renames the source file over the destination. The rename replaces the
+	 * destination atomically on POSIX file systems. Where it can't, the
+	 * destination is deleted first, and as the last resort the file is copied.
+	 */
+	public static void replaceFile(File source, File destination)
+		throws IOException {
+
+		if (source.renameTo(destination)) {
+			return;
+		}
+
+		if (destination.exists()) {
+			destination.delete();
+
+			if (source.renameTo(destination)) {
+				return;
+			}
+		}
+
+		// Different file systems
+
+		copyFile(source, destination);
+
+		destination.setLastModified(source.lastModified());
+
+		if (!source.delete()) {
+			throw new IOException("Unable to delete " + source);
+		}
+	}
+
+	/**
+	 * Forces the content of the file to the disk.
+	 */
+	public static void sync(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+		try {
+			randomAccessFile.getFD().sync();
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+
+	public static long transfer(InputStream is, File destination)
+		throws IOException {
+
+		_mkParentDirs(destination);
+
+		try {
+			ReadableByteChannel sourceChannel = Channels.newChannel(is);
+
+			FileOutputStream fos = new FileOutputStream(destination);
+
+			try {
+				FileChannel destinationChannel = fos.getChannel();
+
+				long position = 0;
+				long count = 0;
+
+				while ((count = destinationChannel.transferFrom(
+							sourceChannel, position, _MAX_TRANSFER_SIZE)) > 0) {
+
+					position += count;
+				}
+
+				ExtDeployStatistics.addFile(position);
+
+				return position;
+			}
+			finally {
+				fos.close();
+			}
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private static void _mkParentDirs(File file) {
+		File parentFile = file.getParentFile();
+
+		if ((parentFile != null) && !parentFile.exists()) {
+			parentFile.mkdirs();
+		}
+	}
+
+	private static final long _MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+}
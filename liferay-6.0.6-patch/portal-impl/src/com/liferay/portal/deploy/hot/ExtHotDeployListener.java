@@ -21,34 +21,32 @@ import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.servlet.WebDirDetector;
 import com.liferay.portal.kernel.util.FileUtil;
+import com.liferay.portal.kernel.util.GetterUtil;
 import com.liferay.portal.kernel.util.HttpUtil;
-import com.liferay.portal.kernel.util.StreamUtil;
 import com.liferay.portal.kernel.util.StringBundler;
-import com.liferay.portal.kernel.util.StringPool;
-import com.liferay.portal.kernel.util.Time;
-import com.liferay.portal.tools.WebXMLBuilder;
+import com.liferay.portal.util.ExtManifest;
 import com.liferay.portal.util.ExtRegistry;
 import com.liferay.portal.util.PortalUtil;
-import com.liferay.util.SystemProperties;
-import com.liferay.util.ant.CopyTask;
+import com.liferay.portal.util.PropsUtil;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.ArrayList;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletContext;
-import org.apache.commons.configuration.PropertiesConfiguration;
 import org.springframework.core.io.UrlResource;
 
 /**
@@ -56,6 +54,124 @@ import org.springframework.core.io.UrlResource;
  */
 public class ExtHotDeployListener extends BaseHotDeployListener {
 
+	public ExtHotDeployListener() {
+		if (!_WATCH_ENABLED) {
+			return;
+		}
+
+		// One watcher for the portal, started by the first listener
+
+		synchronized (ExtHotDeployListener.class) {
+			if (_docrootWatcher == null) {
+				_docrootWatcher = new ExtDocrootWatcher(this, _WATCH_INTERVAL);
+
+				_docrootWatcher.start();
+			}
+		}
+	}
+
+	/**
+	 * Queues the Ext Plugins deployed from now on instead of installing them,
+	 * until {@link #flushDeploys()} is called. The portal captures the deploys
+	 * of the plugins found at startup this way.
+	 */
+	public static void captureDeploys() {
+		synchronized (_pendingDeployEvents) {
+			_captureDeploys = true;
+		}
+	}
+
+	/**
+	 * Installs the queued Ext Plugins as one batch, so the merged portal files
+	 * are rebuilt once for all of them. Ext Plugins deployed later are
+	 * installed one by one again.
+	 */
+	public static void flushDeploys() {
+		List<HotDeployEvent> events = null;
+		ExtHotDeployListener listener = null;
+
+		synchronized (_pendingDeployEvents) {
+			_captureDeploys = false;
+
+			events = new ArrayList<HotDeployEvent>(
+				_pendingDeployEvents.values());
+			listener = _pendingDeployListener;
+
+			_pendingDeployEvents.clear();
+			_pendingDeployListener = null;
+		}
+
+		if (events.isEmpty()) {
+			return;
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info("Deploying " + events.size() + " Ext Plugins");
+		}
+
+		try {
+			listener.deployExts(events);
+		}
+		catch (Exception e) {
+			_log.error("Unable to deploy Ext Plugins", e);
+		}
+	}
+
+	public static ExtRedeployScheduler getRedeployScheduler() {
+		return _redeployScheduler;
+	}
+
+	/**
+	 * Stops the background threads of the Ext Plugin deployment and
+	 * unregisters its statistics MBean. Pending redeploys are dropped. Called
+	 * when the portal is destroyed.
+	 */
+	public static void shutdown() {
+		synchronized (ExtHotDeployListener.class) {
+			if (_docrootWatcher != null) {
+				_docrootWatcher.stop();
+
+				_docrootWatcher = null;
+			}
+		}
+
+		_redeployScheduler.shutdown();
+
+		ExtDeployStatistics.unregister();
+	}
+
+	/**
+	 * Installs several Ext Plugins at once. The plugins are registered and
+	 * their files installed, then service.js, portal-ext-plugin.properties,
+	 * and web.xml are rebuilt once for all of them. If that fails, the plugins
+	 * are deployed one by one, so only the broken ones aren't installed.
+	 * Plugins that are already registered only get their servlet context
+	 * updated.
+	 */
+	public void deployExts(List<HotDeployEvent> events) throws Exception {
+		Map<ServletContext, ClassLoader> portletClassLoaders =
+			new LinkedHashMap<ServletContext, ClassLoader>();
+
+		for (HotDeployEvent event : events) {
+			ServletContext servletContext = event.getServletContext();
+
+			if (ExtRegistry.isRegistered(
+					servletContext.getServletContextName())) {
+
+				ExtRegistry.updateRegisteredServletContext(servletContext);
+
+				continue;
+			}
+
+			portletClassLoaders.put(
+				servletContext, event.getContextClassLoader());
+		}
+
+		synchronized (_deployLock) {
+			doDeployExts(portletClassLoaders);
+		}
+	}
+
 	public void invokeDeploy(HotDeployEvent event) throws HotDeployException {
 		try {
 			doInvokeDeploy(event);
@@ -76,6 +192,141 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 		}
 	}
 
+	protected void addInstallStages(
+		ExtInstallPipeline pipeline, final ServletContext servletContext,
+		final String portalWebDir, final String pluginWebDir) {
+
+		final String servletContextName =
+			servletContext.getServletContextName();
+
+		pipeline.addStage(
+			"installJars " + servletContextName,
+			new Callable<Void>() {
+
+				public Void call() throws Exception {
+					installJars(servletContext);
+
+					return null;
+				}
+
+			});
+		pipeline.addStage(
+			"installWebInfJar " + servletContextName,
+			new Callable<Void>() {
+
+				public Void call() throws Exception {
+					installWebInfJar(
+						portalWebDir, pluginWebDir, servletContextName);
+
+					return null;
+				}
+
+			});
+		pipeline.addStage(
+			"installWebFiles " + servletContextName,
+			new Callable<Void>() {
+
+				public Void call() throws Exception {
+					installWebFiles(
+						portalWebDir, pluginWebDir, servletContextName);
+
+					return null;
+				}
+
+			});
+	}
+
+	/**
+	 * Adds the stages rebuilding the portal files merged from all registered
+	 * Ext Plugins.
+	 */
+	protected void addRebuildStages(ExtInstallPipeline pipeline) {
+		pipeline.addStage(
+			"rebuildPortalExtPluginProperties",
+			new Callable<Void>() {
+
+				public Void call() throws Exception {
+					rebuildPortalExtPluginProperties();
+
+					return null;
+				}
+
+			});
+		pipeline.addStage(
+			"rebuildServiceJS",
+			new Callable<Void>() {
+
+				public Void call() throws Exception {
+					rebuildServiceJS();
+
+					return null;
+				}
+
+			});
+		pipeline.addStage(
+			"rebuildWebXml",
+			new Callable<Void>() {
+
+				public Void call() throws Exception {
+					rebuildWebXml();
+
+					return null;
+				}
+
+			});
+	}
+
+	protected void deployExt(
+			ServletContext servletContext, ClassLoader portletClassLoader)
+		throws Exception {
+
+		Map<ServletContext, ClassLoader> portletClassLoaders =
+			new LinkedHashMap<ServletContext, ClassLoader>();
+
+		portletClassLoaders.put(servletContext, portletClassLoader);
+
+		doDeployExts(portletClassLoaders);
+	}
+
+	protected void doDeployExts(
+			Map<ServletContext, ClassLoader> portletClassLoaders)
+		throws Exception {
+
+		if (portletClassLoaders.size() <= 1) {
+			installExts(portletClassLoaders);
+
+			return;
+		}
+
+		try {
+			installExts(portletClassLoaders);
+		}
+		catch (Exception e) {
+			_log.error(
+				"Unable to deploy " + portletClassLoaders.size() +
+					" Ext Plugins together, deploying them one by one",
+				e);
+
+			// A broken plugin must not keep the others from being installed
+
+			for (Map.Entry<ServletContext, ClassLoader> entry :
+					portletClassLoaders.entrySet()) {
+
+				ServletContext servletContext = entry.getKey();
+
+				try {
+					deployExt(servletContext, entry.getValue());
+				}
+				catch (Exception e2) {
+					_log.error(
+						"Unable to deploy extension environment for " +
+							servletContext.getServletContextName(),
+						e2);
+				}
+			}
+		}
+	}
+
 	protected void doInvokeDeploy(HotDeployEvent event) throws Exception {
 		ServletContext servletContext = event.getServletContext();
 
@@ -93,18 +344,19 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 			return;
 		}
 
-		if (_redeployServletContextNames.contains(servletContextName) && 
+		ClassLoader portletClassLoader = event.getContextClassLoader();
+
+		_portletClassLoaders.put(servletContextName, portletClassLoader);
+
+		if (_redeployServletContextNames.remove(servletContextName) &&
 			ExtRegistry.isRegistered(servletContextName)) {
 
-			if (_log.isInfoEnabled()) {
-				_log.info(
-					"Redeploying Ext Plugin for " + servletContextName);
-			}
-			uninstallExt(servletContextName);
-			if (_log.isInfoEnabled()) {
-				_log.info(
-					"Ext Plugin " + servletContextName + " has been undeployed.");
-			}
+			// Containers undeploy and deploy a plugin several times when its
+			// files are being copied, only the last version is redeployed
+
+			scheduleRedeploy(servletContext, portletClassLoader);
+
+			return;
 		}
 
 		if (_log.isInfoEnabled()) {
@@ -123,55 +375,21 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 			return;
 		}
 
-		Map<String, Set<String>> conflicts = ExtRegistry.getConflicts(
-			servletContext);
-
-		if (!conflicts.isEmpty()) {
-			StringBundler sb = new StringBundler();
-
-			sb.append(
-				"Extension environment for " + servletContextName +
-					" cannot be applied because of detected conflicts:");
+		// Plugins deployed while the portal starts are installed as one batch
+		// by flushDeploys
 
-			Iterator<Map.Entry<String, Set<String>>> itr =
-				conflicts.entrySet().iterator();
+		synchronized (_pendingDeployEvents) {
+			if (_captureDeploys) {
+				_pendingDeployEvents.put(servletContextName, event);
 
-			while (itr.hasNext()) {
-				Map.Entry<String, Set<String>> entry = itr.next();
+				_pendingDeployListener = this;
 
-				String conflictServletContextName = entry.getKey();
-				Set<String> conflictFiles = entry.getValue();
-
-				sb.append("\n\t");
-				sb.append(conflictServletContextName);
-				sb.append(":");
-
-				for (String conflictFile : conflictFiles) {
-					sb.append("\n\t\t");
-					sb.append(conflictFile);
-				}
+				return;
 			}
-
-			_log.error(sb.toString());
-
-			return;
-		}
-
-		try {
-			installExt(servletContext, event.getContextClassLoader());
-		} catch (Exception e) {
-			// rollback
-			uninstallExt(servletContextName);
-
-			throw e;
 		}
 
-
-		if (_log.isInfoEnabled()) {
-			_log.info(
-				"Extension environment for " + servletContextName +
-					" has been applied. You must reboot the server and " +
-						"redeploy all other plugins.");
+		synchronized (_deployLock) {
+			deployExt(servletContext, portletClassLoader);
 		}
 	}
 
@@ -192,7 +410,25 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 			return;
 		}
 
+		_portletClassLoaders.remove(servletContextName);
+
+		if (_pendingDeployEvents.remove(servletContextName) != null) {
+			if (_log.isInfoEnabled()) {
+				_log.info(
+					"Ext Plugin " + servletContextName + " was undeployed " +
+						"before it has been installed");
+			}
+
+			return;
+		}
+
 		if(ExtRegistry.isRegistered(servletContextName)){
+
+			// A redeploy still waiting for the quiet period would use the
+			// servlet context being destroyed
+
+			_redeployScheduler.cancel(servletContextName);
+
 			_redeployServletContextNames.add(servletContextName);
 			if (_log.isInfoEnabled()) {
 				_log.info(
@@ -207,290 +443,1155 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 		}
 	}
 
-	protected void installExt(
-			ServletContext servletContext, ClassLoader portletClassLoader)
+	/**
+	 * Registers the Ext Plugins, installs their files, and rebuilds the merged
+	 * portal files once. Nothing is changed in the portal until the journal is
+	 * committed, so a failed install only has to be unregistered.
+	 */
+	protected void installExts(
+			Map<ServletContext, ClassLoader> portletClassLoaders)
 		throws Exception {
 
-		String servletContextName = servletContext.getServletContextName();
-
 		String portalWebDir = PortalUtil.getPortalWebDir();
-		String pluginWebDir = WebDirDetector.getRootDir(portletClassLoader);
 
-		ExtRegistry.registerExt(servletContext);
+		Map<ServletContext, String> pluginWebDirs =
+			new LinkedHashMap<ServletContext, String>();
 
-		installJars(servletContext);
-		installWebInfJar(portalWebDir, pluginWebDir, servletContextName);
-		installWebFiles(portalWebDir, pluginWebDir, servletContextName);
+		ExtDeployStatistics.Phase phase = null;
 
-		rebuildPortalExtPluginProperties();
-		rebuildServiceJS();
-		rebuildWebXml();
+		try {
+			for (Map.Entry<ServletContext, ClassLoader> entry :
+					portletClassLoaders.entrySet()) {
 
-		FileUtil.copyFile(
-			pluginWebDir + "WEB-INF/ext-" + servletContextName + ".xml",
-			portalWebDir + "WEB-INF/ext-" + servletContextName + ".xml");
-	}
-	protected void copyJar(
-			ServletContext servletContext, String dir, String jarName)
-		throws Exception {
+				ServletContext servletContext = entry.getKey();
 
-		String servletContextName = servletContext.getServletContextName();
+				String servletContextName =
+					servletContext.getServletContextName();
 
-		String jarFullName = "/WEB-INF/" + jarName + "/" + jarName + ".jar";
+				// Plugins registered before are part of the check, so
+				// plugins of the same batch can't conflict either
 
-		InputStream is = servletContext.getResourceAsStream(jarFullName);
+				Map<String, Set<String>> conflicts = ExtRegistry.getConflicts(
+					servletContext);
 
-		if (is == null) {
-			throw new HotDeployException(jarFullName + " does not exist");
-		}
+				if (!conflicts.isEmpty()) {
+					logConflicts(servletContextName, conflicts);
 
-		String newJarFullName =
-			dir + "ext-" + servletContextName + jarName.substring(3) + ".jar";
+					continue;
+				}
 
-		StreamUtil.transfer(is, new FileOutputStream(new File(newJarFullName)));
-	}
-	protected void installJars(ServletContext servletContext)
-			throws Exception {
-		String globalLibDir = PortalUtil.getGlobalLibDir();
-		String portalLibDir = PortalUtil.getPortalLibDir();
+				String pluginWebDir = getPluginWebDir(entry.getValue());
 
-		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_GLOBAL_CL) {
-			copyJar(servletContext, globalLibDir, jarName);
-		}
-		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL) {
-			copyJar(servletContext, portalLibDir, jarName);
-		}
-	}
-	protected void installWebFiles(
-		String portalWebDir, String pluginWebDir,
-		String servletContextName) throws Exception {
+				ExtRegistry.registerExt(servletContext);
 
-		HookHotDeployListener hookListener = new HookHotDeployListener();
-		Set<String> files = ExtRegistry.getFiles(servletContextName);
-		for(String file : files){
-			if(file.startsWith("ext-web/docroot/") &&
-				!ExtRegistry.isMergedFile(file)) {
+				pluginWebDirs.put(servletContext, pluginWebDir);
+			}
 
-				String relativeFile = file.substring(
-					file.indexOf("docroot/") + "docroot/".length());
+			if (pluginWebDirs.isEmpty()) {
+				return;
+			}
 
-				File portalFile = new File(portalWebDir, relativeFile);
-				File pluginFile = new File(pluginWebDir + "WEB-INF/", file);
+			String name = "batch";
 
-				File hookPortalFile = hookListener.getPortalJspBackupFile(portalFile);
-				if(hookPortalFile.exists()){
-					resetPortalFileBackup(portalFile.getAbsolutePath(), hookPortalFile.getAbsolutePath());
-					if (_log.isDebugEnabled()) {
-						_log.debug("Copying [from, to]: [" + pluginFile + ", " + hookPortalFile + "]");
-					}
-					FileUtil.copyFile(pluginFile, hookPortalFile);
-				} else {
-					resetPortalFileBackup(portalFile.getAbsolutePath());
-					if (_log.isDebugEnabled()) {
-						_log.debug("Copying [from, to]: [" + pluginFile + ", " + portalFile + "]");
-					}
-					FileUtil.copyFile(pluginFile, portalFile);
-				}
+			if (pluginWebDirs.size() == 1) {
+				ServletContext servletContext =
+					pluginWebDirs.keySet().iterator().next();
+
+				name = servletContext.getServletContextName();
 			}
-		}
-	}
-	protected void installWebInfJar(String portalWebDir, String pluginWebDir, String servletContextName)
-			throws Exception {
-		String zipName = portalWebDir + "WEB-INF/lib/ext-" + servletContextName + "-webinf" + ".jar";
 
-		File dir = new File(pluginWebDir + "WEB-INF/ext-web/docroot/WEB-INF");
-		if (!dir.isDirectory()) {
-			throw new IllegalArgumentException("Not a directory: " + dir);
-		}
+			// The rebuild stages record their phases under this one, also
+			// when they run on the threads of the pipeline
 
-		File[] files = dir.listFiles(new FileFilter() {
-			public boolean accept(File pathname) {
-				return ExtRegistry.isMergedFile(pathname.getPath());
-			}
-		});
+			phase = ExtDeployStatistics.startPhase(name, "installExts");
 
-		zipWebInfJar(zipName, files);
-	}
+			beginJournal(name);
 
-	protected void rebuildWebXml() {
-		String portalWebDir = PortalUtil.getPortalWebDir();
-		resetPortalFileBackup(portalWebDir + "WEB-INF/web.xml");
+			// The stages write disjoint sets of files, the ext-<name>.xml
+			// copies mark the plugins as installed and so they must come last
 
-		Set<ServletContext> ctxs = ExtRegistry.getServletContexts();
-		for (ServletContext servletContext : ctxs) {
-			String pluginWebXML = servletContext.getRealPath("WEB-INF/ext-web/docroot/WEB-INF/web.xml");
-			if (!FileUtil.exists(pluginWebXML)) {
-				if (_log.isDebugEnabled()) {
-					_log.debug("Ext Plugin's web.xml not found for " + servletContext.getServletContextName());
-				}
-				return;
-			}
-			if (_log.isDebugEnabled()) {
-				_log.debug("Rebuilding portal's web.xml using " + pluginWebXML);
-			}
+			ExtInstallPipeline pipeline = new ExtInstallPipeline(
+				name, _INSTALL_THREADS);
 
-			rebuildWebXml(pluginWebXML);
-		}
-	}
+			for (Map.Entry<ServletContext, String> entry :
+					pluginWebDirs.entrySet()) {
 
+				addInstallStages(
+					pipeline, entry.getKey(), portalWebDir, entry.getValue());
+			}
 
-	protected void rebuildWebXml(String pluginWebXMLFileName) {
-		String portalWebDir = PortalUtil.getPortalWebDir();
-		String tmpDir =
-			SystemProperties.get(SystemProperties.TMP_DIR) + StringPool.SLASH +
-				Time.getTimestamp();
-
-		WebXMLBuilder.main(
-			new String[] {
-				portalWebDir + "WEB-INF/web.xml",
-				pluginWebXMLFileName,
-				tmpDir + "/web.xml"
-			});
+			addRebuildStages(pipeline);
 
-		File portalWebXml = new File(portalWebDir + "WEB-INF/web.xml");
-		File tmpWebXml = new File(tmpDir + "/web.xml");
+			pipeline.execute();
 
-		tmpWebXml.setLastModified(portalWebXml.lastModified());
+			// The merged jar is built from the jars staged by the pipeline
 
-		File originalWebXml = new File(portalWebDir + "WEB-INF", "web.xml.original");
-		FileUtil.copyFile(portalWebXml, originalWebXml);
-		originalWebXml.setLastModified(portalWebXml.lastModified());
+			rebuildPortalJar();
 
-		CopyTask.copyFile(
-			tmpWebXml, new File(portalWebDir + "WEB-INF"), true, true);
+			for (Map.Entry<ServletContext, String> entry :
+					pluginWebDirs.entrySet()) {
 
-		FileUtil.deltree(tmpDir);
-	}
+				String servletContextName =
+					entry.getKey().getServletContextName();
+				String pluginWebDir = entry.getValue();
 
+				copyExtXml(portalWebDir, pluginWebDir, servletContextName);
 
+				if (_INCREMENTAL_REDEPLOY_ENABLED) {
+					ExtDeployManifest manifest = buildDeployManifest(
+						pluginWebDir, servletContextName);
 
-	protected void rebuildPortalExtPluginProperties() throws Exception {
-		File extPluginPropsFile = new File(PortalUtil.getPortalWebDir() + "WEB-INF/classes/portal-ext-plugin.properties");
-		extPluginPropsFile.delete();
-		extPluginPropsFile.createNewFile();
-		Set<ServletContext> ctxs = ExtRegistry.getServletContexts();
-		for (ServletContext servletContext : ctxs) {
-			URL pluginPropsURL = servletContext.getResource("WEB-INF/ext-web/docroot/WEB-INF/classes/portal-ext.properties");
-			if (pluginPropsURL == null) {
-				if (_log.isDebugEnabled()) {
-					_log.debug("Ext Plugin's portal-ext.properties not found");
+					manifest.write(
+						stageFile(getDeployManifestFile(servletContextName)));
 				}
-				return;
-			}
-			if (_log.isDebugEnabled()) {
-				_log.debug("Loading portal-ext.properties from " + pluginPropsURL);
 			}
-			rebuildPortalExtPluginProperties(pluginPropsURL);
+
+			commitJournal();
 		}
-	}
+		catch (Exception e) {
+			rollbackJournal();
 
-	private void rebuildPortalExtPluginProperties(URL pluginPropsURL) throws Exception {
-		PropertiesConfiguration pluginProps = new PropertiesConfiguration(pluginPropsURL);
+			for (ServletContext servletContext : pluginWebDirs.keySet()) {
+				ExtRegistry.unregisterExt(
+					servletContext.getServletContextName());
+			}
 
-		PropertiesConfiguration portalProps = new PropertiesConfiguration(this.getClass().getClassLoader().getResource("portal.properties"));
+			ExtRegistry.discardEvents();
 
-		File extPluginPropsFile = new File(PortalUtil.getPortalWebDir() + "WEB-INF/classes/portal-ext-plugin.properties");
-		PropertiesConfiguration extPluginPortalProps = new PropertiesConfiguration();
-		if (extPluginPropsFile.exists()) {
-			extPluginPortalProps.load(extPluginPropsFile);
+			throw e;
 		}
-
-		for (Iterator it = pluginProps.getKeys(); it.hasNext();) {
-			String key = (String) it.next();
-			List value = pluginProps.getList(key);
-			if (key.endsWith("+")) {
-				key = key.substring(0, key.length() - 1);
-				List newValue = new ArrayList();
-				if (extPluginPortalProps.containsKey(key)) {
-					// already rewrited
-					newValue.addAll(extPluginPortalProps.getList(key));
-				} else {
-					newValue.addAll(portalProps.getList(key));
-				}
-
-				newValue.addAll(value);
-				extPluginPortalProps.setProperty(key, newValue);
-			} else {
-				extPluginPortalProps.setProperty(key, value);
+		finally {
+			if (phase != null) {
+				phase.end();
 			}
 		}
 
-		extPluginPortalProps.save(extPluginPropsFile);
+		for (ServletContext servletContext : pluginWebDirs.keySet()) {
+			if (_log.isInfoEnabled()) {
+				_log.info(
+					"Extension environment for " +
+						servletContext.getServletContextName() +
+							" has been applied. You must reboot the server " +
+								"and redeploy all other plugins.");
+			}
+		}
 	}
 
-	protected void rebuildServiceJS() throws Exception {
-		String portalWebDir = PortalUtil.getPortalWebDir();
-		resetPortalFileBackup(portalWebDir + "html/js/liferay/service.js");
+	protected void beginJournal(String servletContextName)
+		throws IOException {
 
-		for (ServletContext servletContex : ExtRegistry.getServletContexts()) {
-			rebuildServiceJS(portalWebDir, servletContex);
-		}
+		_journal = ExtDeployJournal.begin(
+			PortalUtil.getPortalWebDir(), servletContextName);
 	}
 
-	private void rebuildServiceJS(String portalWebDir, ServletContext servletContext) throws Exception {
-		URL pluginJSURL = servletContext.getResource("WEB-INF/ext-web/docroot/html/js/liferay/service.js");
-		if (pluginJSURL == null) {
-			if (_log.isDebugEnabled()) {
-				_log.debug("Ext Plugin's service.js not found for "
-					+ servletContext.getServletContextName());
-			}
-			return;
-		}
-		if (_log.isDebugEnabled()) {
-			_log.debug("Loading service.js from " + pluginJSURL);
-		}
-		// append
-		FileOutputStream portalJS = new FileOutputStream(portalWebDir + "html/js/liferay/service.js", true);
+	/**
+	 * Commits the journal. If its files can't be applied after the commit
+	 * record has been written, the deploy counts as done and the journal is
+	 * completed on the next start. A journal that isn't committed is left to
+	 * the caller's rollback.
+	 */
+	protected void commitJournal() throws IOException {
+		ExtDeployJournal journal = getJournal();
+
 		try {
-			InputStream pluginJS = new UrlResource(pluginJSURL).getInputStream();
-			try {
-				byte[] buff = new byte[4096];
-				int len = 0;
-				portalJS.write(new byte[]{13, 10});
-				while((len = pluginJS.read(buff)) != -1){
-					portalJS.write(buff, 0, len);
-				}
-				portalJS.write(new byte[]{13, 10});
-			} finally {
-				pluginJS.close();
+			journal.commit();
+		}
+		catch (IOException ioe) {
+			if (!journal.isCommitted()) {
+				throw ioe;
 			}
-		} finally {
-			portalJS.close();
+
+			_log.error(
+				"Unable to apply the deploy of " + journal.getName() +
+					", it will be completed when the portal starts",
+				ioe);
 		}
-		
-	}
 
-	private void resetPortalFileBackup(String portalFileName) {
-		resetPortalFileBackup(portalFileName, portalFileName);
-	}
-	private void resetPortalFileBackup(String portalFileName, String currentFileName) {
-		File backupFile = new File(portalFileName + BACKUP_EXT);
-		File currentFile = new File(currentFileName);
-		if(!currentFile.exists()){
+		_journal = null;
+
+		// The portal can start without the cache, so failing to write it
+		// doesn't fail the deploy
+
+		try {
+			ExtRegistry.writeCache(PortalUtil.getPortalWebDir());
+		}
+		catch (IOException ioe) {
+			_log.warn("Unable to write the Ext registry cache", ioe);
+		}
+
+		ExtRegistry.publishEvents();
+	}
+
+	protected void copyExtXml(
+			String portalWebDir, String pluginWebDir,
+			String servletContextName)
+		throws IOException {
+
+		ExtFileUtil.copyFile(
+			new File(
+				pluginWebDir + "WEB-INF/ext-" + servletContextName + ".xml"),
+			stageFile(
+				new File(
+					portalWebDir + "WEB-INF/ext-" + servletContextName +
+						".xml")));
+	}
+
+	protected ExtDeployManifest buildDeployManifest(
+			String pluginWebDir, String servletContextName)
+		throws Exception {
+
+		ExtDeployManifest manifest = new ExtDeployManifest();
+
+		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_GLOBAL_CL) {
+			putDigest(
+				manifest, ExtDeployManifest.KEY_JAR + jarName,
+				pluginWebDir + "WEB-INF/" + jarName + "/" + jarName + ".jar");
+		}
+
+		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL) {
+			putDigest(
+				manifest, ExtDeployManifest.KEY_JAR + jarName,
+				pluginWebDir + "WEB-INF/" + jarName + "/" + jarName + ".jar");
+		}
+
+		File[] webInfFiles = getWebInfJarFiles(pluginWebDir);
+
+		manifest.putDigest(
+			ExtDeployManifest.KEY_MERGED + _WEBINF_JAR,
+			ExtDeployManifest.digest(webInfFiles));
+
+		putDigest(
+			manifest, ExtDeployManifest.KEY_MERGED + _PORTAL_EXT_PROPERTIES,
+			pluginWebDir +
+				"WEB-INF/ext-web/docroot/WEB-INF/classes/portal-ext.properties");
+		putDigest(
+			manifest, ExtDeployManifest.KEY_MERGED + _SERVICE_JS,
+			pluginWebDir + "WEB-INF/ext-web/docroot/html/js/liferay/service.js");
+		putDigest(
+			manifest, ExtDeployManifest.KEY_MERGED + _WEB_XML,
+			pluginWebDir + "WEB-INF/ext-web/docroot/WEB-INF/web.xml");
+
+		for (String file : ExtRegistry.getFiles(
+				servletContextName, _DOCROOT_DIR)) {
+
+			putDigest(
+				manifest, ExtDeployManifest.KEY_FILE + file,
+				pluginWebDir + "WEB-INF/" + file);
+		}
+
+		return manifest;
+	}
+
+	protected ExtBackupStore getBackupStore() throws IOException {
+		return ExtBackupStore.getInstance(PortalUtil.getPortalWebDir());
+	}
+
+	protected File getDeployManifestFile(String servletContextName) {
+		return new File(
+			PortalUtil.getPortalWebDir() + "WEB-INF/ext-" +
+				servletContextName + ".digests");
+	}
+
+	/**
+	 * Returns the journal of the install, redeploy, or uninstall in progress.
+	 * All changes of portal files have to go through it.
+	 */
+	protected ExtDeployJournal getJournal() {
+		ExtDeployJournal journal = _journal;
+
+		if (journal == null) {
+			throw new IllegalStateException("No Ext Plugin deploy in progress");
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Returns the root directory of the plugin the class loader belongs to.
+	 */
+	protected String getPluginWebDir(ClassLoader portletClassLoader) {
+		return WebDirDetector.getRootDir(portletClassLoader);
+	}
+
+	/**
+	 * Returns the directory the portal class loader jars of the plugins are
+	 * kept in when they're merged into one jar.
+	 */
+	protected String getPortalJarsDir() {
+		return PortalUtil.getPortalWebDir() + "WEB-INF/ext-jars/";
+	}
+
+	protected void logConflicts(
+		String servletContextName, Map<String, Set<String>> conflicts) {
+
+		StringBundler sb = new StringBundler();
+
+		sb.append(
+			"Extension environment for " + servletContextName +
+				" cannot be applied because of detected conflicts:");
+
+		Iterator<Map.Entry<String, Set<String>>> itr =
+			conflicts.entrySet().iterator();
+
+		while (itr.hasNext()) {
+			Map.Entry<String, Set<String>> entry = itr.next();
+
+			String conflictServletContextName = entry.getKey();
+			Set<String> conflictFiles = entry.getValue();
+
+			sb.append("\n\t");
+			sb.append(conflictServletContextName);
+			sb.append(":");
+
+			for (String conflictFile : conflictFiles) {
+				sb.append("\n\t\t");
+				sb.append(conflictFile);
+			}
+		}
+
+		_log.error(sb.toString());
+	}
+
+	protected void copyJar(
+			ServletContext servletContext, String dir, String jarName)
+		throws Exception {
+
+		String servletContextName = servletContext.getServletContextName();
+
+		String jarFullName = "/WEB-INF/" + jarName + "/" + jarName + ".jar";
+
+		File newJarFile = stageFile(
+			new File(
+				dir + "ext-" + servletContextName + jarName.substring(3) +
+					".jar"));
+
+		String jarRealPath = servletContext.getRealPath(jarFullName);
+
+		if ((jarRealPath != null) && FileUtil.exists(jarRealPath)) {
+			ExtFileUtil.copyFile(new File(jarRealPath), newJarFile);
+
 			return;
 		}
-		if (!backupFile.exists()) {
-			FileUtil.copyFile(currentFile, backupFile);
-			backupFile.setLastModified(currentFile.lastModified());
-		} else {
-			FileUtil.copyFile(backupFile, currentFile);
-			currentFile.setLastModified(backupFile.lastModified());
+
+		InputStream is = servletContext.getResourceAsStream(jarFullName);
+
+		if (is == null) {
+			throw new HotDeployException(jarFullName + " does not exist");
+		}
+
+		ExtFileUtil.transfer(is, newJarFile);
+	}
+	protected void installJars(ServletContext servletContext)
+			throws Exception {
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			servletContext.getServletContextName(), "installJars");
+
+		try {
+			String globalLibDir = PortalUtil.getGlobalLibDir();
+			String portalLibDir = PortalUtil.getPortalLibDir();
+
+			for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_GLOBAL_CL) {
+				copyJar(servletContext, globalLibDir, jarName);
+			}
+			for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL) {
+				if (_MERGE_PORTAL_JARS) {
+
+					// The jar is kept aside and merged into ext-plugins.jar,
+					// a jar left by a deploy without merging must go
+
+					copyJar(servletContext, getPortalJarsDir(), jarName);
+					removeJar(
+						servletContext.getServletContextName(), portalLibDir,
+						jarName);
+				}
+				else {
+					copyJar(servletContext, portalLibDir, jarName);
+				}
+			}
+		}
+		finally {
+			phase.end();
+		}
+	}
+	protected void installWebFiles(
+		String portalWebDir, String pluginWebDir,
+		String servletContextName) throws Exception {
+
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			servletContextName, "installWebFiles");
+
+		try {
+			HookHotDeployListener hookListener = new HookHotDeployListener();
+			Set<String> files = ExtRegistry.getFiles(
+				servletContextName, _DOCROOT_DIR);
+
+			for (String file : files) {
+				installWebFile(
+					portalWebDir, pluginWebDir, file, hookListener, true);
+			}
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	/**
+	 * Copies the ext-web file over the portal file. With <code>backup</code>,
+	 * the portal file is moved into the backup store first. It has to be off
+	 * when the portal file is a copy installed by the previous version of the
+	 * plugin, otherwise uninstalling would restore that copy.
+	 */
+	protected void installWebFile(
+			String portalWebDir, String pluginWebDir, String file,
+			HookHotDeployListener hookListener, boolean backup)
+		throws IOException {
+
+		String relativeFile = file.substring(
+			file.indexOf("docroot/") + "docroot/".length());
+
+		File portalFile = new File(portalWebDir, relativeFile);
+		File pluginFile = new File(pluginWebDir + "WEB-INF/", file);
+
+		File hookPortalFile = hookListener.getPortalJspBackupFile(portalFile);
+		if(hookPortalFile.exists()){
+			portalFile = hookPortalFile;
+		}
+
+		if (_log.isDebugEnabled()) {
+			_log.debug("Copying [from, to]: [" + pluginFile + ", " + portalFile + "]");
+		}
+
+		// The journal moves the original file into the backup store right
+		// before it's replaced, an existing backup is left alone
+
+		String backupPath = null;
+
+		if (backup) {
+			backupPath = relativeFile;
+		}
+
+		ExtFileUtil.copyFile(
+			pluginFile, getJournal().stage(portalFile, backupPath));
+	}
+
+	protected void installWebInfJar(String portalWebDir, String pluginWebDir, String servletContextName)
+			throws Exception {
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			servletContextName, "installWebInfJar");
+
+		try {
+			String zipName = portalWebDir + "WEB-INF/lib/ext-" + servletContextName + "-webinf" + ".jar";
+
+			File jarFile = new File(zipName);
+
+			ExtWebInfJarBuilder webInfJarBuilder = new ExtWebInfJarBuilder(
+				getWebInfJarFiles(pluginWebDir));
+
+			if (webInfJarBuilder.isUpToDate(jarFile)) {
+				if (_log.isDebugEnabled()) {
+					_log.debug("Skipping unchanged " + jarFile);
+				}
+
+				return;
+			}
+
+			webInfJarBuilder.write(stageFile(jarFile));
+		}
+		finally {
+			phase.end();
 		}
 	}
 
+	protected File[] getWebInfJarFiles(String pluginWebDir) {
+		File dir = new File(pluginWebDir + "WEB-INF/ext-web/docroot/WEB-INF");
+		if (!dir.isDirectory()) {
+			throw new IllegalArgumentException("Not a directory: " + dir);
+		}
+
+		return dir.listFiles(new FileFilter() {
+			public boolean accept(File pathname) {
+				return ExtRegistry.isMergedFile(pathname.getPath());
+			}
+		});
+	}
+
+	/**
+	 * Merges the portal class loader jars of all registered plugins into
+	 * ext-plugins.jar in the portal lib dir, or deletes it when there are none.
+	 * Does nothing unless ext.hot.deploy.merge.portal.jars is enabled.
+	 */
+	protected void rebuildPortalJar() throws Exception {
+		if (!_MERGE_PORTAL_JARS) {
+			return;
+		}
+
+		ExtDeployJournal journal = getJournal();
+
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			journal.getName(), "rebuildPortalJar");
+
+		try {
+			File portalJarFile = new File(
+				PortalUtil.getPortalLibDir() +
+					ExtPortalJarMerger.MERGED_JAR_NAME);
+
+			ExtPortalJarMerger portalJarMerger = new ExtPortalJarMerger(
+				journal.stage(portalJarFile),
+				ExtPortalJarMerger.MERGED_JAR_NAME);
+
+			try {
+
+				// Plugins are merged in the order they were registered, so an
+				// entry found in more than one plugin is always taken from
+				// the same one
+
+				for (String servletContextName :
+						ExtRegistry.getServletContextNames()) {
+
+					for (String jarName :
+							ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL) {
+
+						File jarFile = journal.getFile(
+							new File(
+								getPortalJarsDir() + "ext-" +
+									servletContextName + jarName.substring(3) +
+										".jar"));
+
+						if ((jarFile != null) && jarFile.exists()) {
+							portalJarMerger.addJar(servletContextName, jarFile);
+						}
+					}
+				}
+			}
+			finally {
+				portalJarMerger.close();
+			}
+
+			if (portalJarMerger.isEmpty()) {
+				journal.delete(portalJarFile);
+
+				return;
+			}
+
+			Map<String, Set<String>> conflicts =
+				portalJarMerger.getConflicts();
+
+			if (!conflicts.isEmpty() && _log.isWarnEnabled()) {
+				StringBundler sb = new StringBundler();
+
+				sb.append("Entries found in more than one Ext Plugin are ");
+				sb.append("taken from the first one listed:");
+
+				for (Map.Entry<String, Set<String>> entry :
+						conflicts.entrySet()) {
+
+					sb.append("\n\t");
+					sb.append(entry.getKey());
+					sb.append(" ");
+					sb.append(entry.getValue());
+				}
+
+				_log.warn(sb.toString());
+			}
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	protected void rebuildWebXml() throws Exception {
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			getJournal().getName(), "rebuildWebXml");
+
+		try {
+			String portalWebDir = PortalUtil.getPortalWebDir();
+
+			File portalWebXml = new File(portalWebDir + _WEB_XML_PATH);
+
+			ExtBackupStore backupStore = getBackupStore();
+
+			backupStore.backup(_WEB_XML_PATH, portalWebXml, false);
+
+			File backupWebXml = backupStore.getBackupFile(_WEB_XML_PATH);
+			long backupLastModified = backupStore.getBackupLastModified(
+				_WEB_XML_PATH);
+
+			ExtWebXMLMerger webXMLMerger = null;
+
+			Set<ServletContext> ctxs = ExtRegistry.getServletContexts();
+			for (ServletContext servletContext : ctxs) {
+				String pluginWebXML = servletContext.getRealPath("WEB-INF/ext-web/docroot/WEB-INF/web.xml");
+				if (!FileUtil.exists(pluginWebXML)) {
+					if (_log.isDebugEnabled()) {
+						_log.debug("Ext Plugin's web.xml not found for " + servletContext.getServletContextName());
+					}
+					continue;
+				}
+				if (_log.isDebugEnabled()) {
+					_log.debug("Rebuilding portal's web.xml using " + pluginWebXML);
+				}
+
+				if (webXMLMerger == null) {
+					webXMLMerger = new ExtWebXMLMerger(backupWebXml);
+				}
+
+				webXMLMerger.merge(new File(pluginWebXML));
+			}
+
+			if (webXMLMerger == null) {
+				resetPortalFileBackup(_WEB_XML_PATH);
+
+				return;
+			}
+
+			File originalWebXml = stageFile(
+				new File(portalWebDir + "WEB-INF", "web.xml.original"));
+			ExtFileUtil.copyFile(backupWebXml, originalWebXml);
+			originalWebXml.setLastModified(backupLastModified);
+
+			// Keep the time stamp so the container doesn't reload the portal
+
+			webXMLMerger.write(stageFile(portalWebXml), backupLastModified);
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	protected void rebuildPortalExtPluginProperties() throws Exception {
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			getJournal().getName(), "rebuildPortalExtPluginProperties");
+
+		try {
+			ExtPluginProperties extPluginProperties = new ExtPluginProperties();
+
+			Set<ServletContext> ctxs = ExtRegistry.getServletContexts();
+			for (ServletContext servletContext : ctxs) {
+				URL pluginPropsURL = servletContext.getResource("WEB-INF/ext-web/docroot/WEB-INF/classes/portal-ext.properties");
+				if (pluginPropsURL == null) {
+					if (_log.isDebugEnabled()) {
+						_log.debug("Ext Plugin's portal-ext.properties not found");
+					}
+					continue;
+				}
+				if (_log.isDebugEnabled()) {
+					_log.debug("Loading portal-ext.properties from " + pluginPropsURL);
+				}
+				extPluginProperties.addPluginProperties(pluginPropsURL);
+			}
+
+			extPluginProperties.write(getJournal());
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	protected boolean redeployExt(
+			ServletContext servletContext, ClassLoader portletClassLoader)
+		throws Exception {
+
+		String servletContextName = servletContext.getServletContextName();
+
+		ExtDeployManifest oldManifest = ExtDeployManifest.read(
+			getDeployManifestFile(servletContextName));
+
+		if (oldManifest == null) {
+			if (_log.isDebugEnabled()) {
+				_log.debug(
+					"Deploy manifest not found for " + servletContextName +
+						", falling back to full redeploy");
+			}
+
+			return false;
+		}
+
+		if (!ExtRegistry.getConflicts(servletContext).isEmpty()) {
+			return false;
+		}
+
+		String portalWebDir = PortalUtil.getPortalWebDir();
+		String pluginWebDir = getPluginWebDir(portletClassLoader);
+
+		// The manifest is built from the registered files and the rebuilds
+		// read the registered plugins, so the new version is registered
+		// during the redeploy and the previous one restored if it fails
+
+		ServletContext previousServletContext = ExtRegistry.getServletContext(
+			servletContextName);
+		ExtManifest previousManifest = ExtRegistry.getManifest(
+			servletContextName);
+
+		ExtRegistry.registerExt(servletContext);
+
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			servletContextName, "redeployExt");
+
+		try {
+			beginJournal(servletContextName);
+
+			ExtDeployManifest manifest = buildDeployManifest(
+				pluginWebDir, servletContextName);
+
+			redeployJars(
+				servletContext, ExtRegistry.EXT_PLUGIN_JARS_GLOBAL_CL,
+				PortalUtil.getGlobalLibDir(), manifest, oldManifest);
+
+			if (_MERGE_PORTAL_JARS) {
+				if (redeployJars(
+						servletContext, ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL,
+						getPortalJarsDir(), manifest, oldManifest)) {
+
+					rebuildPortalJar();
+				}
+			}
+			else {
+				redeployJars(
+					servletContext, ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL,
+					PortalUtil.getPortalLibDir(), manifest, oldManifest);
+			}
+
+			if (manifest.isChanged(
+					oldManifest, ExtDeployManifest.KEY_MERGED + _WEBINF_JAR)) {
+
+				installWebInfJar(
+					portalWebDir, pluginWebDir, servletContextName);
+			}
+
+			redeployWebFiles(
+				portalWebDir, pluginWebDir, manifest, oldManifest);
+
+			if (manifest.isChanged(
+					oldManifest,
+					ExtDeployManifest.KEY_MERGED + _PORTAL_EXT_PROPERTIES)) {
+
+				rebuildPortalExtPluginProperties();
+			}
+
+			if (manifest.isChanged(
+					oldManifest, ExtDeployManifest.KEY_MERGED + _SERVICE_JS)) {
+
+				rebuildServiceJS();
+			}
+
+			if (manifest.isChanged(
+					oldManifest, ExtDeployManifest.KEY_MERGED + _WEB_XML)) {
+
+				rebuildWebXml();
+			}
+
+			copyExtXml(portalWebDir, pluginWebDir, servletContextName);
+
+			manifest.write(
+				stageFile(getDeployManifestFile(servletContextName)));
+
+			commitJournal();
+		}
+		catch (Exception e) {
+
+			// Nothing was changed in the portal, so the previous version stays
+			// installed
+
+			rollbackJournal();
+
+			if (previousManifest == null) {
+				ExtRegistry.unregisterExt(servletContextName);
+			}
+			else {
+				ExtRegistry.registerExt(
+					servletContextName, previousServletContext,
+					previousManifest);
+			}
+
+			ExtRegistry.discardEvents();
+
+			throw e;
+		}
+		finally {
+			phase.end();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replaces the installed version of the plugin, incrementally if possible.
+	 * Runs on the thread of the redeploy scheduler.
+	 */
+	protected void redeploy(
+			ServletContext servletContext, ClassLoader portletClassLoader)
+		throws Exception {
+
+		String servletContextName = servletContext.getServletContextName();
+
+		synchronized (_deployLock) {
+			if (_log.isInfoEnabled()) {
+				_log.info(
+					"Redeploying Ext Plugin for " + servletContextName);
+			}
+
+			if (_INCREMENTAL_REDEPLOY_ENABLED &&
+				redeployExt(servletContext, portletClassLoader)) {
+
+				if (_log.isInfoEnabled()) {
+					_log.info(
+						"Extension environment for " + servletContextName +
+							" has been redeployed incrementally. You must " +
+								"reboot the server and redeploy all other " +
+									"plugins.");
+				}
+
+				return;
+			}
+
+			uninstallExt(servletContextName);
+			if (_log.isInfoEnabled()) {
+				_log.info(
+					"Ext Plugin " + servletContextName + " has been undeployed.");
+			}
+
+			deployExt(servletContext, portletClassLoader);
+		}
+	}
+
+	/**
+	 * Copies a changed ext-web file of a deployed plugin over the portal
+	 * file, or over the original JSP kept by a hook. The copy and the new
+	 * digest of the deploy manifest are committed through a journal like any
+	 * other deploy, so a file that has only been touched is skipped and the
+	 * next redeploy doesn't copy it again.
+	 */
+	protected void syncWebFile(ServletContext servletContext, String file)
+		throws Exception {
+
+		String servletContextName = servletContext.getServletContextName();
+
+		synchronized (_deployLock) {
+			ClassLoader portletClassLoader = _portletClassLoaders.get(
+				servletContextName);
+
+			if (portletClassLoader == null) {
+				return;
+			}
+
+			String portalWebDir = PortalUtil.getPortalWebDir();
+			String pluginWebDir = getPluginWebDir(portletClassLoader);
+
+			File deployManifestFile = getDeployManifestFile(
+				servletContextName);
+
+			ExtDeployManifest manifest = ExtDeployManifest.read(
+				deployManifestFile);
+
+			if (manifest == null) {
+				scheduleRedeploy(servletContext, portletClassLoader);
+
+				return;
+			}
+
+			String key = ExtDeployManifest.KEY_FILE + file;
+
+			String digest = ExtDeployManifest.digest(
+				new File(pluginWebDir + "WEB-INF/", file));
+
+			String oldDigest = manifest.getDigest(key);
+
+			if (digest.equals(oldDigest)) {
+				return;
+			}
+
+			beginJournal(servletContextName);
+
+			try {
+				installWebFile(
+					portalWebDir, pluginWebDir, file,
+					new HookHotDeployListener(), oldDigest == null);
+
+				manifest.putDigest(key, digest);
+
+				manifest.write(stageFile(deployManifestFile));
+
+				commitJournal();
+			}
+			catch (Exception e) {
+				rollbackJournal();
+
+				throw e;
+			}
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info(
+				"Synchronized " + file + " of Ext Plugin " +
+					servletContextName);
+		}
+	}
+
+	/**
+	 * Copies the changed jars and returns <code>true</code> if there were
+	 * any.
+	 */
+	protected boolean redeployJars(
+			ServletContext servletContext, List<String> jarNames, String dir,
+			ExtDeployManifest manifest, ExtDeployManifest oldManifest)
+		throws Exception {
+
+		boolean changed = false;
+
+		for (String jarName : jarNames) {
+			if (manifest.isChanged(
+					oldManifest, ExtDeployManifest.KEY_JAR + jarName)) {
+
+				copyJar(servletContext, dir, jarName);
+
+				changed = true;
+			}
+			else if (_log.isDebugEnabled()) {
+				_log.debug("Skipping unchanged " + jarName);
+			}
+		}
+
+		return changed;
+	}
+
+	protected void redeployWebFiles(
+			String portalWebDir, String pluginWebDir,
+			ExtDeployManifest manifest, ExtDeployManifest oldManifest)
+		throws IOException {
+
+		HookHotDeployListener hookListener = new HookHotDeployListener();
+
+		Set<String> oldFiles = oldManifest.getKeys(ExtDeployManifest.KEY_FILE);
+		Set<String> files = manifest.getKeys(ExtDeployManifest.KEY_FILE);
+
+		int changedCount = 0;
+
+		for (String file : files) {
+			if (manifest.isChanged(
+					oldManifest, ExtDeployManifest.KEY_FILE + file)) {
+
+				installWebFile(
+					portalWebDir, pluginWebDir, file, hookListener,
+					!oldFiles.contains(file));
+
+				changedCount++;
+			}
+		}
+
+		for (String oldFile : oldFiles) {
+			if (!files.contains(oldFile)) {
+				uninstallWebFile(portalWebDir, oldFile, hookListener);
+
+				changedCount++;
+			}
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info(
+				changedCount + " of " + files.size() +
+					" web files have changed");
+		}
+	}
+
+	private void putDigest(
+			ExtDeployManifest manifest, String key, String fileName)
+		throws Exception {
+
+		File file = new File(fileName);
+
+		if (file.exists()) {
+			manifest.putDigest(key, ExtDeployManifest.digest(file));
+		}
+	}
+
+	protected void rebuildServiceJS() throws Exception {
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			getJournal().getName(), "rebuildServiceJS");
+
+		try {
+			String portalWebDir = PortalUtil.getPortalWebDir();
+
+			File serviceJS = new File(portalWebDir, ExtServiceJSBundle.SERVICE_JS);
+
+			ExtBackupStore backupStore = getBackupStore();
+
+			backupStore.backup(ExtServiceJSBundle.SERVICE_JS, serviceJS, false);
+
+			ExtServiceJSBundle serviceJSBundle = new ExtServiceJSBundle(
+				portalWebDir,
+				backupStore.getBackupFile(ExtServiceJSBundle.SERVICE_JS));
+
+			for (ServletContext servletContext : ExtRegistry.getServletContexts()) {
+				URL pluginJSURL = servletContext.getResource("WEB-INF/ext-web/docroot/html/js/liferay/service.js");
+				if (pluginJSURL == null) {
+					if (_log.isDebugEnabled()) {
+						_log.debug("Ext Plugin's service.js not found for "
+							+ servletContext.getServletContextName());
+					}
+					continue;
+				}
+				if (_log.isDebugEnabled()) {
+					_log.debug("Loading service.js from " + pluginJSURL);
+				}
+				serviceJSBundle.append(
+					new UrlResource(pluginJSURL).getInputStream());
+			}
+
+			if (serviceJSBundle.isAppended()) {
+				serviceJSBundle.write(getJournal());
+			}
+			else {
+				resetPortalFileBackup(ExtServiceJSBundle.SERVICE_JS);
+			}
+		}
+		finally {
+			phase.end();
+		}
+	}
+
+	private void resetPortalFileBackup(String portalPath) throws IOException {
+		resetPortalFileBackup(
+			portalPath, new File(PortalUtil.getPortalWebDir(), portalPath));
+	}
+
+	private void resetPortalFileBackup(String portalPath, File currentFile)
+		throws IOException {
+
+		if(!currentFile.exists()){
+			return;
+		}
+
+		ExtBackupStore backupStore = getBackupStore();
+
+		if (!backupStore.hasBackup(portalPath)) {
+			backupStore.backup(portalPath, currentFile, false);
+		} else if (!backupStore.isRestored(portalPath, currentFile)) {
+			backupStore.copyBackup(portalPath, stageFile(currentFile));
+		}
+	}
+
+	protected void rollbackJournal() {
+		if (_journal != null) {
+			_journal.rollback();
+
+			_journal = null;
+		}
+	}
+
+	/**
+	 * Schedules an incremental redeploy of a deployed plugin, e.g. when the
+	 * docroot watcher detects a change that can't be copied directly.
+	 */
+	protected void scheduleRedeploy(ServletContext servletContext) {
+		ClassLoader portletClassLoader = _portletClassLoaders.get(
+			servletContext.getServletContextName());
+
+		if (portletClassLoader == null) {
+			if (_log.isWarnEnabled()) {
+				_log.warn(
+					"Unable to redeploy " +
+						servletContext.getServletContextName() +
+							" because it isn't deployed");
+			}
+
+			return;
+		}
+
+		scheduleRedeploy(servletContext, portletClassLoader);
+	}
+
+	protected void scheduleRedeploy(
+		final ServletContext servletContext,
+		final ClassLoader portletClassLoader) {
+
+		final String servletContextName =
+			servletContext.getServletContextName();
+
+		_redeployScheduler.schedule(
+			servletContextName,
+			new Runnable() {
+
+				public void run() {
+					try {
+						redeploy(servletContext, portletClassLoader);
+					}
+					catch (Exception e) {
+						_log.error(
+							"Unable to redeploy extension environment for " +
+								servletContextName,
+							e);
+					}
+				}
+
+			});
+
+		if (_log.isInfoEnabled()) {
+			_log.info(
+				"Redeploy of Ext Plugin " + servletContextName +
+					" will start in " + _redeployScheduler.getQuietPeriod() +
+						" ms");
+		}
+	}
+
+	protected File stageFile(File file) throws IOException {
+		return getJournal().stage(file);
+	}
+
 	protected void uninstallExt(String servletContextName) throws Exception {
-		uninstallJars(servletContextName);
-		uninstallWebInfJar(servletContextName);
-		uninstallWebFiles(servletContextName);
+		ExtDeployStatistics.Phase phase = ExtDeployStatistics.startPhase(
+			servletContextName, "uninstallExt");
+
+		try {
+			beginJournal(servletContextName);
+
+			ServletContext servletContext = null;
+			ExtManifest manifest = null;
+
+			try {
+				uninstallJars(servletContextName);
+				uninstallWebInfJar(servletContextName);
+				uninstallWebFiles(servletContextName);
+
+				// The portal files are rebuilt without the plugin, which is
+				// registered again if the uninstall fails
+
+				servletContext = ExtRegistry.getServletContext(
+					servletContextName);
+				manifest = ExtRegistry.getManifest(servletContextName);
 
-		ExtRegistry.unregisterExt(servletContextName);
+				ExtRegistry.unregisterExt(servletContextName);
 
-		rebuildPortalExtPluginProperties();
-		rebuildServiceJS();
-		rebuildWebXml();
+				rebuildPortalJar();
+				rebuildPortalExtPluginProperties();
+				rebuildServiceJS();
+				rebuildWebXml();
 
-		FileUtil.delete(PortalUtil.getPortalWebDir() +
-			"WEB-INF/ext-" + servletContextName + ".xml");
+				ExtDeployJournal journal = getJournal();
+
+				journal.delete(
+					new File(
+						PortalUtil.getPortalWebDir() + "WEB-INF/ext-" +
+							servletContextName + ".xml"));
+				journal.delete(getDeployManifestFile(servletContextName));
+
+				commitJournal();
+			}
+			catch (Exception e) {
+				rollbackJournal();
+
+				if (manifest != null) {
+					ExtRegistry.registerExt(
+						servletContextName, servletContext, manifest);
+				}
+
+				ExtRegistry.discardEvents();
+
+				throw e;
+			}
+		}
+		finally {
+			phase.end();
+		}
 	}
 
 	protected void uninstallJars(String servletContextName)
@@ -503,6 +1604,7 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 		}
 		for (String jarName : ExtRegistry.EXT_PLUGIN_JARS_PORTAL_CL) {
 			removeJar(servletContextName, portalLibDir, jarName);
+			removeJar(servletContextName, getPortalJarsDir(), jarName);
 		}
 	}
 	protected void removeJar(
@@ -512,31 +1614,41 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 		String newJarFullName =
 				dir + "ext-" + servletContextName + jarName.substring(3) + ".jar";
 
-		FileUtil.delete(newJarFullName);
+		getJournal().delete(new File(newJarFullName));
 	}
-	protected void uninstallWebFiles(String servletContextName) {
+	protected void uninstallWebFiles(String servletContextName)
+		throws IOException {
+
 		String portalWebDir = PortalUtil.getPortalWebDir();
-				HookHotDeployListener hookListener = new HookHotDeployListener();
-
-		Set<String> files = ExtRegistry.getFiles(servletContextName);
-		for(String file : files){
-			if(file.startsWith("ext-web/docroot/") &&
-				!ExtRegistry.isMergedFile(file)) {
-
-				String relativeFile = file.substring(
-					file.indexOf("docroot/") + "docroot/".length());
-
-				File portalFile = new File(portalWebDir, relativeFile);
-				File hookPortalFile = hookListener.getPortalJspBackupFile(portalFile);
-				if(hookPortalFile.exists()){
-					resetPortalFileBackup(portalFile.getAbsolutePath(), hookPortalFile.getAbsolutePath());
-				} else {
-					resetPortalFileBackup(portalFile.getAbsolutePath());
-					if(!FileUtil.exists(portalFile + BACKUP_EXT)){
-						FileUtil.delete(portalFile + BACKUP_EXT);
-					}
-				}
-			}
+		HookHotDeployListener hookListener = new HookHotDeployListener();
+
+		Set<String> files = ExtRegistry.getFiles(
+			servletContextName, _DOCROOT_DIR);
+
+		for (String file : files) {
+			uninstallWebFile(portalWebDir, file, hookListener);
+		}
+	}
+
+	protected void uninstallWebFile(
+			String portalWebDir, String file,
+			HookHotDeployListener hookListener)
+		throws IOException {
+
+		String relativeFile = file.substring(
+			file.indexOf("docroot/") + "docroot/".length());
+
+		File portalFile = new File(portalWebDir, relativeFile);
+		File hookPortalFile = hookListener.getPortalJspBackupFile(portalFile);
+		if(hookPortalFile.exists()){
+			resetPortalFileBackup(relativeFile, hookPortalFile);
+		} else if (getBackupStore().hasBackup(relativeFile)) {
+			resetPortalFileBackup(relativeFile, portalFile);
+		} else {
+
+			// the file was added by the Ext Plugin
+
+			getJournal().delete(portalFile);
 		}
 	}
 	protected void uninstallWebInfJar(String servletContextName) throws Exception {
@@ -544,38 +1656,55 @@ public class ExtHotDeployListener extends BaseHotDeployListener {
 		removeJar(servletContextName, portalLibDir, "ext-webinf");
 	}
 
-	private void zipWebInfJar(String zipName, File[] files) throws Exception{
-		byte[] buffer = new byte[4096]; // Create a buffer for copying
-		int bytesRead;
+	private static final String _DOCROOT_DIR = "ext-web/docroot/";
 
-		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipName));
-		try {
-			for (int i = 0; i < files.length; i++) {
-				File f = files[i];
-				if (f.isDirectory()) {
-					continue;
-				}
+	private static final boolean _INCREMENTAL_REDEPLOY_ENABLED =
+		GetterUtil.getBoolean(
+			PropsUtil.get("ext.hot.deploy.incremental.redeploy.enabled"), true);
 
-				String fileName = "WEB-INF/" + f.getName();
-				FileInputStream in = new FileInputStream(f); // Stream to read file
-				try {
-					ZipEntry entry = new ZipEntry(fileName); // Make a ZipEntry
-					out.putNextEntry(entry); // Store entry
-					while ((bytesRead = in.read(buffer)) != -1) {
-						out.write(buffer, 0, bytesRead);
-					}
-				} finally {
-					in.close();
-				}
-			}
-		} finally {
-			out.close();
-		}
-	}
+	private static final int _INSTALL_THREADS = GetterUtil.getInteger(
+		PropsUtil.get("ext.hot.deploy.install.threads"),
+		Runtime.getRuntime().availableProcessors());
+
+	private static final boolean _MERGE_PORTAL_JARS = GetterUtil.getBoolean(
+		PropsUtil.get("ext.hot.deploy.merge.portal.jars"));
+
+	private static final String _PORTAL_EXT_PROPERTIES =
+		"portal-ext.properties";
+
+	private static final long _REDEPLOY_QUIET_PERIOD = GetterUtil.getLong(
+		PropsUtil.get("ext.hot.deploy.redeploy.quiet.period"), 2000);
 
+	private static final String _SERVICE_JS = "service.js";
+
+	private static final boolean _WATCH_ENABLED = GetterUtil.getBoolean(
+		PropsUtil.get("ext.hot.deploy.watch.enabled"));
+
+	private static final long _WATCH_INTERVAL = GetterUtil.getLong(
+		PropsUtil.get("ext.hot.deploy.watch.interval"), 1000);
+
+	private static final String _WEB_XML = "web.xml";
+
+	private static final String _WEB_XML_PATH = "WEB-INF/web.xml";
+
+	private static final String _WEBINF_JAR = "webinf.jar";
 
 	private static Log _log = LogFactoryUtil.getLog(ExtHotDeployListener.class);
-	private static List<String> _redeployServletContextNames =
-			new ArrayList<String>();
-	private static String BACKUP_EXT = ".beforeExt";
+
+	private static boolean _captureDeploys;
+	private static ExtDocrootWatcher _docrootWatcher;
+	private static Map<String, HotDeployEvent> _pendingDeployEvents =
+		Collections.synchronizedMap(
+			new LinkedHashMap<String, HotDeployEvent>());
+	private static ExtHotDeployListener _pendingDeployListener;
+	private static Map<String, ClassLoader> _portletClassLoaders =
+		new ConcurrentHashMap<String, ClassLoader>();
+	private static ExtRedeployScheduler _redeployScheduler =
+		new ExtRedeployScheduler(_REDEPLOY_QUIET_PERIOD);
+	private static Set<String> _redeployServletContextNames =
+		Collections.synchronizedSet(new HashSet<String>());
+
+	private final Object _deployLock = new Object();
+	private ExtDeployJournal _journal;
+
 }
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent Ext Plugin install stages on a bounded pool and waits for
+ * all of them before returning. Stages must not write to the same files. The
+ * phases the stages start are nested in the deploy phase of the thread that
+ * executes the pipeline.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtInstallPipeline {
+
+	public ExtInstallPipeline(String name, int maxThreads) {
+		_name = name;
+		_maxThreads = maxThreads;
+	}
+
+	public void addStage(String stageName, Callable<?> stage) {
+		_stages.put(stageName, stage);
+	}
+
+	public void execute() throws Exception {
+		int threads = Math.min(_maxThreads, _stages.size());
+
+		if (threads <= 1) {
+			for (Map.Entry<String, Callable<?>> entry : _stages.entrySet()) {
+				executeStage(entry.getKey(), entry.getValue());
+			}
+
+			return;
+		}
+
+		final ExtDeployStatistics.Phase parentPhase =
+			ExtDeployStatistics.getCurrentPhase();
+
+		ExecutorService executorService = Executors.newFixedThreadPool(
+			threads, new PipelineThreadFactory());
+
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+
+			for (final Map.Entry<String, Callable<?>> entry :
+					_stages.entrySet()) {
+
+				futures.add(
+					executorService.submit(
+						new Callable<Object>() {
+
+							public Object call() throws Exception {
+								ExtDeployStatistics.setCurrentPhase(
+									parentPhase);
+
+								try {
+									executeStage(
+										entry.getKey(), entry.getValue());
+								}
+								finally {
+									ExtDeployStatistics.setCurrentPhase(null);
+								}
+
+								return null;
+							}
+
+						}));
+			}
+
+			// Wait for every stage, so a rollback never races a running one
+
+			Throwable throwable = null;
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				}
+				catch (ExecutionException ee) {
+					if (throwable == null) {
+						throwable = ee.getCause();
+					}
+					else {
+						_log.error(ee.getCause(), ee.getCause());
+					}
+				}
+			}
+
+			if (throwable instanceof Error) {
+				throw (Error)throwable;
+			}
+			else if (throwable instanceof Exception) {
+				throw (Exception)throwable;
+			}
+			else if (throwable != null) {
+				throw new Exception(throwable);
+			}
+		}
+		finally {
+			executorService.shutdown();
+		}
+	}
+
+	protected void executeStage(String stageName, Callable<?> stage)
+		throws Exception {
+
+		long startTime = System.currentTimeMillis();
+
+		stage.call();
+
+		if (_log.isDebugEnabled()) {
+			_log.debug(
+				"Stage " + stageName + " of " + _name + " finished in " +
+					(System.currentTimeMillis() - startTime) + " ms");
+		}
+	}
+
+	private static Log _log = LogFactoryUtil.getLog(ExtInstallPipeline.class);
+
+	private int _maxThreads;
+	private String _name;
+	private Map<String, Callable<?>> _stages =
+		new LinkedHashMap<String, Callable<?>>();
+
+	private class PipelineThreadFactory implements ThreadFactory {
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(
+				runnable,
+				"Ext Plugin install " + _name + "-" +
+					_threadCounter.incrementAndGet());
+
+			thread.setContextClassLoader(_contextClassLoader);
+			thread.setDaemon(true);
+
+			return thread;
+		}
+
+		private ClassLoader _contextClassLoader =
+			Thread.currentThread().getContextClassLoader();
+		private AtomicInteger _threadCounter = new AtomicInteger();
+
+	}
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+import com.liferay.portal.util.PortalUtil;
+
+import java.io.File;
+
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+/**
+ * Folds the portal-ext.properties of all Ext Plugins into
+ * portal-ext-plugin.properties. A key ending with "+" appends its values to
+ * the portal.properties value, or to the value already set by a plugin merged
+ * before.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtPluginProperties {
+
+	public static File getFile() {
+		return new File(
+			PortalUtil.getPortalWebDir() +
+				"WEB-INF/classes/portal-ext-plugin.properties");
+	}
+
+	public void addPluginProperties(URL pluginPropertiesURL) throws Exception {
+		PropertiesConfiguration pluginProperties = new PropertiesConfiguration(
+			pluginPropertiesURL);
+
+		for (Iterator<?> itr = pluginProperties.getKeys(); itr.hasNext();) {
+			String key = (String)itr.next();
+
+			List<String> values = _toStrings(pluginProperties.getList(key));
+
+			if (key.endsWith("+")) {
+				key = key.substring(0, key.length() - 1);
+
+				List<String> newValues = _properties.get(key);
+
+				if (newValues == null) {
+					newValues = _toStrings(
+						_getPortalProperties().getList(key));
+				}
+
+				newValues.addAll(values);
+
+				_properties.put(key, newValues);
+			}
+			else {
+				_properties.put(key, values);
+			}
+		}
+	}
+
+	public Map<String, List<String>> getProperties() {
+		Map<String, List<String>> properties =
+			new LinkedHashMap<String, List<String>>();
+
+		for (Map.Entry<String, List<String>> entry : _properties.entrySet()) {
+			properties.put(
+				entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+		}
+
+		return Collections.unmodifiableMap(properties);
+	}
+
+	/**
+	 * Stages the merged properties as the new portal-ext-plugin.properties in
+	 * the journal.
+	 */
+	public void write(ExtDeployJournal journal) throws Exception {
+		PropertiesConfiguration propertiesConfiguration =
+			new PropertiesConfiguration();
+
+		for (Map.Entry<String, List<String>> entry : _properties.entrySet()) {
+			propertiesConfiguration.setProperty(
+				entry.getKey(), entry.getValue());
+		}
+
+		File file = getFile();
+
+		File stagedFile = journal.stage(file);
+
+		propertiesConfiguration.save(stagedFile);
+
+		ExtDeployStatistics.addFile(stagedFile.length());
+
+		if (_log.isDebugEnabled()) {
+			_log.debug(
+				"Wrote " + _properties.size() + " properties to " + file);
+		}
+	}
+
+	private static synchronized PropertiesConfiguration _getPortalProperties()
+		throws Exception {
+
+		if (_portalProperties == null) {
+			ClassLoader classLoader = ExtPluginProperties.class.getClassLoader();
+
+			_portalProperties = new PropertiesConfiguration(
+				classLoader.getResource("portal.properties"));
+		}
+
+		return _portalProperties;
+	}
+
+	private static List<String> _toStrings(List<?> values) {
+		List<String> strings = new ArrayList<String>(values.size());
+
+		for (Object value : values) {
+			strings.add(String.valueOf(value));
+		}
+
+		return strings;
+	}
+
+	private static Log _log = LogFactoryUtil.getLog(ExtPluginProperties.class);
+
+	private static PropertiesConfiguration _portalProperties;
+
+	private Map<String, List<String>> _properties =
+		new LinkedHashMap<String, List<String>>();
+
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Merges the portal class loader jars of all Ext Plugins into one jar, so the
+ * portal class loader searches one jar instead of four per plugin. The jar
+ * gets a META-INF/INDEX.LIST of its packages.
+ *
+ * <p>
+ * Jars have to be added in the order the plugins were registered. An entry
+ * found in more than one plugin is taken from the first one and reported by
+ * {@link #getConflicts()}, just like the registry reports plugins overriding
+ * the same file.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtPortalJarMerger {
+
+	public static final String MERGED_JAR_NAME = "ext-plugins.jar";
+
+	/**
+	 * Creates a merger writing to the given file, which is going to be renamed
+	 * to <code>jarName</code> in the same directory.
+	 */
+	public ExtPortalJarMerger(File destination, String jarName)
+		throws IOException {
+
+		_destination = destination;
+		_jarName = jarName;
+
+		Manifest manifest = new Manifest();
+
+		manifest.getMainAttributes().put(
+			Attributes.Name.MANIFEST_VERSION, "1.0");
+
+		_jarOutputStream = new JarOutputStream(
+			new BufferedOutputStream(
+				new FileOutputStream(destination), _BUFFER_SIZE),
+			manifest);
+	}
+
+	public void addJar(String servletContextName, File jarFile)
+		throws IOException {
+
+		ZipInputStream zipInputStream = new ZipInputStream(
+			new BufferedInputStream(
+				new FileInputStream(jarFile), _BUFFER_SIZE));
+
+		try {
+			ZipEntry zipEntry = null;
+
+			while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+				String name = zipEntry.getName();
+
+				if (zipEntry.isDirectory() || _isSkipped(name)) {
+					continue;
+				}
+
+				String owner = _owners.get(name);
+
+				if (owner != null) {
+					_addConflict(name, owner, servletContextName);
+
+					continue;
+				}
+
+				_owners.put(name, servletContextName);
+
+				ZipEntry newZipEntry = new ZipEntry(name);
+
+				newZipEntry.setTime(zipEntry.getTime());
+
+				_jarOutputStream.putNextEntry(newZipEntry);
+
+				int length = 0;
+
+				while ((length = zipInputStream.read(_buffer)) != -1) {
+					_jarOutputStream.write(_buffer, 0, length);
+				}
+
+				_jarOutputStream.closeEntry();
+
+				_addPackage(name);
+			}
+		}
+		finally {
+			zipInputStream.close();
+		}
+
+		_empty = false;
+	}
+
+	public void close() throws IOException {
+		try {
+			_writeIndex();
+		}
+		finally {
+			_jarOutputStream.close();
+		}
+
+		ExtDeployStatistics.addFile(_destination.length());
+
+		if (_log.isDebugEnabled()) {
+			_log.debug(
+				"Merged " + _owners.size() + " entries in " +
+					_packages.size() + " packages into " + _jarName);
+		}
+	}
+
+	/**
+	 * Returns the entries found in more than one plugin, mapped to the names
+	 * of these plugins. The first name is the plugin the entry was taken
+	 * from.
+	 */
+	public Map<String, Set<String>> getConflicts() {
+		return _conflicts;
+	}
+
+	public boolean isEmpty() {
+		return _empty;
+	}
+
+	private void _addConflict(
+		String name, String owner, String servletContextName) {
+
+		Set<String> servletContextNames = _conflicts.get(name);
+
+		if (servletContextNames == null) {
+			servletContextNames = new LinkedHashSet<String>();
+
+			_conflicts.put(name, servletContextNames);
+		}
+
+		servletContextNames.add(owner);
+		servletContextNames.add(servletContextName);
+	}
+
+	private void _addPackage(String name) {
+		int pos = name.lastIndexOf('/');
+
+		if (pos == -1) {
+			_packages.add(name);
+		}
+		else {
+			_packages.add(name.substring(0, pos));
+		}
+	}
+
+	private boolean _isSkipped(String name) {
+		if (!name.startsWith("META-INF/")) {
+			return false;
+		}
+
+		String upperCaseName = name.toUpperCase();
+
+		if (upperCaseName.equals(JarFile.MANIFEST_NAME) ||
+			upperCaseName.equals(_INDEX_NAME) ||
+			upperCaseName.endsWith(".SF") || upperCaseName.endsWith(".DSA") ||
+			upperCaseName.endsWith(".RSA")) {
+
+			return true;
+		}
+
+		return false;
+	}
+
+	private void _writeIndex() throws IOException {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("JarIndex-Version: 1.0\n\n");
+		sb.append(_jarName);
+		sb.append("\n");
+
+		for (String packageName : _packages) {
+			if (!packageName.startsWith("META-INF")) {
+				sb.append(packageName);
+				sb.append("\n");
+			}
+		}
+
+		sb.append("\n");
+
+		_jarOutputStream.putNextEntry(new ZipEntry(_INDEX_NAME));
+		_jarOutputStream.write(sb.toString().getBytes("UTF-8"));
+		_jarOutputStream.closeEntry();
+	}
+
+	private static final int _BUFFER_SIZE = 65536;
+
+	private static final String _INDEX_NAME = "META-INF/INDEX.LIST";
+
+	private static Log _log = LogFactoryUtil.getLog(ExtPortalJarMerger.class);
+
+	private byte[] _buffer = new byte[_BUFFER_SIZE];
+	private Map<String, Set<String>> _conflicts =
+		new TreeMap<String, Set<String>>();
+	private File _destination;
+	private boolean _empty = true;
+	private String _jarName;
+	private JarOutputStream _jarOutputStream;
+	private Map<String, String> _owners = new HashMap<String, String>();
+	private Set<String> _packages = new TreeSet<String>();
+
+}
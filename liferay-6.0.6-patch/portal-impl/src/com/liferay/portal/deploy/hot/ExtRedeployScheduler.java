@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs Ext Plugin redeploys on a background thread once the deploy events of
+ * a plugin have been quiet for a while. A redeploy scheduled again before it
+ * started replaces the previous one, so a burst of undeploy and deploy events
+ * ends in a single redeploy of the last deployed version.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtRedeployScheduler {
+
+	public ExtRedeployScheduler(long quietPeriod) {
+		_quietPeriod = quietPeriod;
+
+		_scheduledExecutorService = new ScheduledThreadPoolExecutor(
+			1,
+			new ThreadFactory() {
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Ext Plugin Redeploy");
+
+					thread.setDaemon(true);
+
+					return thread;
+				}
+
+			});
+	}
+
+	/**
+	 * Cancels the redeploy of the plugin if it hasn't started yet.
+	 */
+	public boolean cancel(String servletContextName) {
+		Task task = _tasks.remove(servletContextName);
+
+		if (task == null) {
+			return false;
+		}
+
+		task.cancel();
+
+		return true;
+	}
+
+	public long getLastRunDuration() {
+		return _lastRunDuration;
+	}
+
+	public String getLastRunServletContextName() {
+		return _lastRunServletContextName;
+	}
+
+	public long getLastRunTime() {
+		return _lastRunTime;
+	}
+
+	public long getQuietPeriod() {
+		return _quietPeriod;
+	}
+
+	/**
+	 * Returns the number of plugins waiting for a redeploy.
+	 */
+	public int getQueueDepth() {
+		return _tasks.size();
+	}
+
+	public long getRunCount() {
+		return _runCount;
+	}
+
+	public void schedule(String servletContextName, Runnable runnable) {
+		Task task = new Task(servletContextName, runnable);
+
+		Task previousTask = _tasks.put(servletContextName, task);
+
+		if (previousTask != null) {
+			previousTask.cancel();
+
+			if (_log.isDebugEnabled()) {
+				_log.debug(
+					"Coalesced pending redeploy of " + servletContextName);
+			}
+		}
+
+		task.setFuture(
+			_scheduledExecutorService.schedule(
+				task, _quietPeriod, TimeUnit.MILLISECONDS));
+	}
+
+	public void shutdown() {
+		_scheduledExecutorService.shutdownNow();
+
+		_tasks.clear();
+	}
+
+	private static Log _log = LogFactoryUtil.getLog(
+		ExtRedeployScheduler.class);
+
+	private volatile long _lastRunDuration;
+	private volatile String _lastRunServletContextName;
+	private volatile long _lastRunTime;
+	private long _quietPeriod;
+	private volatile long _runCount;
+	private ScheduledExecutorService _scheduledExecutorService;
+	private ConcurrentMap<String, Task> _tasks =
+		new ConcurrentHashMap<String, Task>();
+
+	private class Task implements Runnable {
+
+		public Task(String servletContextName, Runnable runnable) {
+			_servletContextName = servletContextName;
+			_runnable = runnable;
+		}
+
+		public void cancel() {
+			ScheduledFuture<?> future = _future;
+
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+
+		public void run() {
+
+			// A task replaced or cancelled after it was already due is no
+			// longer in the map
+
+			if (!_tasks.remove(_servletContextName, this)) {
+				return;
+			}
+
+			long startTime = System.currentTimeMillis();
+
+			try {
+				_runnable.run();
+			}
+			catch (Throwable t) {
+				_log.error(
+					"Unable to deploy Ext Plugin " + _servletContextName, t);
+			}
+			finally {
+				_lastRunDuration = System.currentTimeMillis() - startTime;
+				_lastRunServletContextName = _servletContextName;
+				_lastRunTime = startTime;
+				_runCount++;
+			}
+
+			if (_log.isInfoEnabled()) {
+				_log.info(
+					"Deploy of Ext Plugin " + _servletContextName + " took " +
+						_lastRunDuration + " ms");
+			}
+		}
+
+		public void setFuture(ScheduledFuture<?> future) {
+			_future = future;
+		}
+
+		private volatile ScheduledFuture<?> _future;
+		private Runnable _runnable;
+		private String _servletContextName;
+
+	}
+
+}
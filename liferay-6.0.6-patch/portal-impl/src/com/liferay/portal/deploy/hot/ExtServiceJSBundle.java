@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Builds html/js/liferay/service.js from the portal's original service.js and
+ * the service.js files of all Ext Plugins in memory, so the file is written
+ * once per rebuild.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtServiceJSBundle {
+
+	public static final String SERVICE_JS = "html/js/liferay/service.js";
+
+	public ExtServiceJSBundle(String portalWebDir, File originalServiceJS)
+		throws IOException {
+
+		_portalWebDir = portalWebDir;
+
+		_content.write(_read(new FileInputStream(originalServiceJS)));
+	}
+
+	public void append(InputStream is) throws IOException {
+		_content.write(_CRLF);
+		_content.write(_read(is));
+		_content.write(_CRLF);
+
+		_appended = true;
+	}
+
+	public boolean isAppended() {
+		return _appended;
+	}
+
+	/**
+	 * Stages the new service.js in the journal.
+	 */
+	public void write(ExtDeployJournal journal) throws IOException {
+		File file = journal.stage(new File(_portalWebDir, SERVICE_JS));
+
+		OutputStream os = new FileOutputStream(file);
+
+		try {
+			_content.writeTo(os);
+		}
+		finally {
+			os.close();
+		}
+
+		ExtDeployStatistics.addFile(_content.size());
+	}
+
+	private byte[] _read(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+		try {
+			byte[] buffer = new byte[8192];
+
+			int len = 0;
+
+			while ((len = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, len);
+			}
+		}
+		finally {
+			is.close();
+		}
+
+		return baos.toByteArray();
+	}
+
+	private static final byte[] _CRLF = {13, 10};
+
+	private boolean _appended;
+	private ByteArrayOutputStream _content = new ByteArrayOutputStream();
+	private String _portalWebDir;
+
+}
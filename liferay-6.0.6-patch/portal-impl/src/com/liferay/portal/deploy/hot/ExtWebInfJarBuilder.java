@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Builds ext-[servlet-context-name]-webinf.jar from the WEB-INF descriptors
+ * of an Ext Plugin. Entries are written in name order, and the XML descriptors
+ * are stored uncompressed so the class loader reads them without inflating.
+ * The digest of the input files is kept in the jar manifest, and
+ * {@link #isUpToDate(File)} uses it to skip rebuilding an unchanged jar.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtWebInfJarBuilder {
+
+	public static final String INPUT_DIGEST_ATTRIBUTE = "Ext-Input-Digest";
+
+	public ExtWebInfJarBuilder(File[] files) throws IOException {
+		for (File file : files) {
+			if (!file.isDirectory()) {
+				_files.add(file);
+			}
+		}
+
+		Collections.sort(_files, new Comparator<File>() {
+
+			public int compare(File file1, File file2) {
+				return file1.getName().compareTo(file2.getName());
+			}
+
+		});
+
+		_inputDigest = ExtDeployManifest.digest(
+			_files.toArray(new File[_files.size()]));
+	}
+
+	public String getInputDigest() {
+		return _inputDigest;
+	}
+
+	/**
+	 * Returns <code>true</code> if the jar was built from the same input
+	 * files.
+	 */
+	public boolean isUpToDate(File jarFile) {
+		if (!jarFile.exists()) {
+			return false;
+		}
+
+		try {
+			JarFile jar = new JarFile(jarFile);
+
+			try {
+				Manifest manifest = jar.getManifest();
+
+				if (manifest == null) {
+					return false;
+				}
+
+				String inputDigest = manifest.getMainAttributes().getValue(
+					INPUT_DIGEST_ATTRIBUTE);
+
+				return _inputDigest.equals(inputDigest);
+			}
+			finally {
+				jar.close();
+			}
+		}
+		catch (IOException ioe) {
+			if (_log.isWarnEnabled()) {
+				_log.warn("Unable to read manifest of " + jarFile, ioe);
+			}
+
+			return false;
+		}
+	}
+
+	public void write(File jarFile) throws IOException {
+		Manifest manifest = new Manifest();
+
+		Attributes attributes = manifest.getMainAttributes();
+
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.putValue(INPUT_DIGEST_ATTRIBUTE, _inputDigest);
+
+		JarOutputStream jarOutputStream = new JarOutputStream(
+			new BufferedOutputStream(
+				new FileOutputStream(jarFile), _BUFFER_SIZE),
+			manifest);
+
+		try {
+			byte[] buffer = new byte[_BUFFER_SIZE];
+
+			for (File file : _files) {
+				ZipEntry zipEntry = new ZipEntry("WEB-INF/" + file.getName());
+
+				zipEntry.setTime(file.lastModified());
+
+				if (_isStored(file)) {
+					zipEntry.setMethod(ZipEntry.STORED);
+					zipEntry.setSize(file.length());
+					zipEntry.setCompressedSize(file.length());
+					zipEntry.setCrc(_getCrc(file, buffer));
+				}
+
+				jarOutputStream.putNextEntry(zipEntry);
+
+				InputStream is = new FileInputStream(file);
+
+				try {
+					int length = 0;
+
+					while ((length = is.read(buffer)) != -1) {
+						jarOutputStream.write(buffer, 0, length);
+					}
+				}
+				finally {
+					is.close();
+				}
+
+				jarOutputStream.closeEntry();
+			}
+		}
+		finally {
+			jarOutputStream.close();
+		}
+
+		ExtDeployStatistics.addFile(jarFile.length());
+
+		if (_log.isDebugEnabled()) {
+			_log.debug(
+				"Wrote " + _files.size() + " entries to " + jarFile + " in " +
+					jarFile.length() + " bytes");
+		}
+	}
+
+	private long _getCrc(File file, byte[] buffer) throws IOException {
+		CRC32 crc32 = new CRC32();
+
+		InputStream is = new FileInputStream(file);
+
+		try {
+			int length = 0;
+
+			while ((length = is.read(buffer)) != -1) {
+				crc32.update(buffer, 0, length);
+			}
+		}
+		finally {
+			is.close();
+		}
+
+		return crc32.getValue();
+	}
+
+	private boolean _isStored(File file) {
+		if (file.getName().endsWith(".xml") &&
+			(file.length() <= _STORED_MAX_SIZE)) {
+
+			return true;
+		}
+
+		return false;
+	}
+
+	private static final int _BUFFER_SIZE = 65536;
+
+	private static final long _STORED_MAX_SIZE = 1024 * 1024;
+
+	private static Log _log = LogFactoryUtil.getLog(ExtWebInfJarBuilder.class);
+
+	private List<File> _files = new ArrayList<File>();
+	private String _inputDigest;
+
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.deploy.hot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Merges the web.xml files of all Ext Plugins into the portal's web.xml in one
+ * pass. The top level elements of every file are kept as StAX event lists and
+ * the result is written once, ordered by the web-app schema. Filters and
+ * filter mappings of the plugins go before the portal ones, everything else is
+ * appended after the portal elements.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtWebXMLMerger {
+
+	public ExtWebXMLMerger(File portalWebXml) throws Exception {
+		_read(portalWebXml, true);
+	}
+
+	public void merge(File pluginWebXml) throws Exception {
+		_read(pluginWebXml, false);
+	}
+
+	/**
+	 * Writes the merged web.xml into a temporary file next to the destination
+	 * and renames it over the destination, so the container never sees a half
+	 * written descriptor.
+	 */
+	public void write(File destination, long lastModified) throws Exception {
+		File tempFile = new File(
+			destination.getParentFile(), destination.getName() + ".tmp");
+
+		OutputStream os = new BufferedOutputStream(
+			new FileOutputStream(tempFile));
+
+		try {
+			_write(os);
+		}
+		finally {
+			os.close();
+		}
+
+		if (lastModified > 0) {
+			tempFile.setLastModified(lastModified);
+		}
+
+		ExtDeployStatistics.addFile(tempFile.length());
+
+		ExtFileUtil.replaceFile(tempFile, destination);
+	}
+
+	private void _addFragment(
+		Map<String, List<List<XMLEvent>>> fragmentsMap, String name,
+		List<XMLEvent> fragment) {
+
+		List<List<XMLEvent>> fragments = fragmentsMap.get(name);
+
+		if (fragments == null) {
+			fragments = new ArrayList<List<XMLEvent>>();
+
+			fragmentsMap.put(name, fragments);
+		}
+
+		fragments.add(fragment);
+
+		_elementNames.add(name);
+	}
+
+	private XMLEvent _toPortalNamespace(XMLEvent event) {
+		if (event.isStartElement()) {
+			StartElement startElement = event.asStartElement();
+
+			return _xmlEventFactory.createStartElement(
+				_toPortalNamespace(startElement.getName()),
+				startElement.getAttributes(),
+				Collections.EMPTY_LIST.iterator());
+		}
+		else if (event.isEndElement()) {
+			return _xmlEventFactory.createEndElement(
+				_toPortalNamespace(event.asEndElement().getName()),
+				Collections.EMPTY_LIST.iterator());
+		}
+
+		return event;
+	}
+
+	private QName _toPortalNamespace(QName qName) {
+		QName rootName = _rootElement.getName();
+
+		return new QName(
+			rootName.getNamespaceURI(), qName.getLocalPart(),
+			rootName.getPrefix());
+	}
+
+	private void _read(File file, boolean portal) throws Exception {
+		InputStream is = new BufferedInputStream(new FileInputStream(file));
+
+		XMLEventReader xmlEventReader = null;
+
+		try {
+			xmlEventReader = _xmlInputFactory.createXMLEventReader(is);
+
+			int depth = 0;
+
+			List<XMLEvent> fragment = null;
+			String fragmentName = null;
+
+			while (xmlEventReader.hasNext()) {
+				XMLEvent event = xmlEventReader.nextEvent();
+
+				if (event.isStartElement()) {
+					depth++;
+
+					if (depth == 1) {
+						if (portal) {
+							_rootElement = event.asStartElement();
+						}
+
+						continue;
+					}
+					else if (depth == 2) {
+						fragment = new ArrayList<XMLEvent>();
+						fragmentName =
+							event.asStartElement().getName().getLocalPart();
+					}
+				}
+				else if ((event.getEventType() == XMLEvent.DTD) && portal) {
+					_dtd = event;
+				}
+
+				if (fragment != null) {
+					fragment.add(_toPortalNamespace(event));
+				}
+
+				if (event.isEndElement()) {
+					if (depth == 2) {
+						if (portal) {
+							_addFragment(
+								_portalFragments, fragmentName, fragment);
+						}
+						else {
+							_addFragment(
+								_pluginFragments, fragmentName, fragment);
+						}
+
+						fragment = null;
+					}
+
+					depth--;
+				}
+			}
+		}
+		catch (XMLStreamException xmlse) {
+			throw new Exception("Unable to parse " + file, xmlse);
+		}
+		finally {
+			if (xmlEventReader != null) {
+				xmlEventReader.close();
+			}
+
+			is.close();
+		}
+	}
+
+	private void _write(OutputStream os) throws XMLStreamException {
+		XMLEventWriter xmlEventWriter = _xmlOutputFactory.createXMLEventWriter(
+			os, _ENCODING);
+
+		xmlEventWriter.add(
+			_xmlEventFactory.createStartDocument(_ENCODING, "1.0"));
+		xmlEventWriter.add(_xmlEventFactory.createCharacters(_NEW_LINE));
+
+		if (_dtd != null) {
+			xmlEventWriter.add(_dtd);
+			xmlEventWriter.add(_xmlEventFactory.createCharacters(_NEW_LINE));
+		}
+
+		xmlEventWriter.add(_rootElement);
+
+		Set<String> elementNames = new LinkedHashSet<String>(_ELEMENT_ORDER);
+
+		elementNames.addAll(_elementNames);
+
+		for (String elementName : elementNames) {
+			if (_PLUGIN_FIRST_ELEMENTS.contains(elementName)) {
+				_writeFragments(
+					xmlEventWriter, _pluginFragments.get(elementName));
+				_writeFragments(
+					xmlEventWriter, _portalFragments.get(elementName));
+			}
+			else {
+				_writeFragments(
+					xmlEventWriter, _portalFragments.get(elementName));
+				_writeFragments(
+					xmlEventWriter, _pluginFragments.get(elementName));
+			}
+		}
+
+		xmlEventWriter.add(_xmlEventFactory.createCharacters(_NEW_LINE));
+		xmlEventWriter.add(
+			_xmlEventFactory.createEndElement(
+				_rootElement.getName(), _rootElement.getNamespaces()));
+		xmlEventWriter.add(_xmlEventFactory.createEndDocument());
+
+		xmlEventWriter.flush();
+		xmlEventWriter.close();
+	}
+
+	private void _writeFragments(
+			XMLEventWriter xmlEventWriter, List<List<XMLEvent>> fragments)
+		throws XMLStreamException {
+
+		if (fragments == null) {
+			return;
+		}
+
+		for (List<XMLEvent> fragment : fragments) {
+			xmlEventWriter.add(
+				_xmlEventFactory.createCharacters(_NEW_LINE + "\t"));
+
+			for (XMLEvent event : fragment) {
+				xmlEventWriter.add(event);
+			}
+		}
+	}
+
+	private static final List<String> _ELEMENT_ORDER = Arrays.asList(
+		new String[] {
+			"description", "display-name", "icon", "distributable",
+			"context-param", "filter", "filter-mapping", "listener", "servlet",
+			"servlet-mapping", "session-config", "mime-mapping",
+			"welcome-file-list", "error-page", "taglib", "jsp-config",
+			"security-constraint", "login-config", "security-role",
+			"env-entry", "ejb-ref", "ejb-local-ref", "service-ref",
+			"resource-ref", "resource-env-ref", "message-destination-ref",
+			"message-destination", "locale-encoding-mapping-list"
+		});
+
+	private static final String _ENCODING = "UTF-8";
+
+	private static final String _NEW_LINE = "\n";
+
+	private static final Set<String> _PLUGIN_FIRST_ELEMENTS =
+		new LinkedHashSet<String>(
+			Arrays.asList(new String[] {"filter", "filter-mapping"}));
+
+	private static XMLEventFactory _xmlEventFactory =
+		XMLEventFactory.newInstance();
+	private static XMLInputFactory _xmlInputFactory;
+	private static XMLOutputFactory _xmlOutputFactory =
+		XMLOutputFactory.newInstance();
+
+	static {
+		_xmlInputFactory = XMLInputFactory.newInstance();
+
+		_xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		_xmlInputFactory.setProperty(
+			XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private XMLEvent _dtd;
+	private Set<String> _elementNames = new LinkedHashSet<String>();
+	private Map<String, List<List<XMLEvent>>> _pluginFragments =
+		new HashMap<String, List<List<XMLEvent>>>();
+	private Map<String, List<List<XMLEvent>>> _portalFragments =
+		new HashMap<String, List<List<XMLEvent>>>();
+	private StartElement _rootElement;
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+
+package com.liferay.portal.language;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Immutable dictionary of the language keys of all locales, giving every key
+ * an id. The keys are stored once in an array and found through an open
+ * addressing table of ids, so the locales share one copy of each key and
+ * index their values by id. Adding keys returns a new dictionary in which the
+ * existing keys keep their ids.
+ *
+ * @author Tomas Polesovsky
+ */
+public class LanguageKeyIndex {
+
+	public LanguageKeyIndex() {
+		this(new String[0]);
+	}
+
+	/**
+	 * Returns a dictionary with the keys appended, or this dictionary if it
+	 * already has all of them.
+	 */
+	public LanguageKeyIndex add(Collection<String> keys) {
+		Set<String> newKeys = new LinkedHashSet<String>();
+
+		for (String key : keys) {
+			if (getId(key) == -1) {
+				newKeys.add(key);
+			}
+		}
+
+		if (newKeys.isEmpty()) {
+			return this;
+		}
+
+		String[] allKeys = new String[_keys.length + newKeys.size()];
+
+		System.arraycopy(_keys, 0, allKeys, 0, _keys.length);
+
+		int id = _keys.length;
+
+		for (String key : newKeys) {
+			allKeys[id++] = key;
+		}
+
+		return new LanguageKeyIndex(allKeys);
+	}
+
+	/**
+	 * Returns the id of the key, or <code>-1</code> if the key isn't in the
+	 * dictionary.
+	 */
+	public int getId(String key) {
+		int slot = _hash(key) & _mask;
+
+		while (true) {
+			int id = _ids[slot];
+
+			if (id == 0) {
+				return -1;
+			}
+
+			if (_keys[id - 1].equals(key)) {
+				return id - 1;
+			}
+
+			slot = (slot + 1) & _mask;
+		}
+	}
+
+	public String getKey(int id) {
+		return _keys[id];
+	}
+
+	public int size() {
+		return _keys.length;
+	}
+
+	private static int _hash(String key) {
+		int hash = key.hashCode();
+
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Builds the table of ids, kept at most half full. A slot holds the id
+	 * plus one, so zero marks an empty slot.
+	 */
+	private LanguageKeyIndex(String[] keys) {
+		_keys = keys;
+
+		int capacity = 16;
+
+		while (capacity < (keys.length * 2)) {
+			capacity <<= 1;
+		}
+
+		_ids = new int[capacity];
+		_mask = capacity - 1;
+
+		for (int i = 0; i < keys.length; i++) {
+			int slot = _hash(keys[i]) & _mask;
+
+			while (_ids[slot] != 0) {
+				slot = (slot + 1) & _mask;
+			}
+
+			_ids[slot] = i + 1;
+		}
+	}
+
+	private final int[] _ids;
+	private final String[] _keys;
+	private final int _mask;
+
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+
+package com.liferay.portal.language;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable map of the messages of a locale. The values are held in an array
+ * indexed by the ids of a {@link LanguageKeyIndex}, a key whose id is past
+ * the end of the array has no value.
+ *
+ * @author Tomas Polesovsky
+ */
+public class LanguageMap extends AbstractMap<String, String> {
+
+	public LanguageMap(LanguageKeyIndex keyIndex, String[] values) {
+		_keyIndex = keyIndex;
+		_values = values;
+
+		int size = 0;
+
+		for (String value : values) {
+			if (value != null) {
+				size++;
+			}
+		}
+
+		_size = size;
+	}
+
+	public boolean containsKey(Object key) {
+		if (get(key) != null) {
+			return true;
+		}
+
+		return false;
+	}
+
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new EntrySet();
+	}
+
+	public String get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+
+		return getValue(_keyIndex.getId((String)key));
+	}
+
+	public LanguageKeyIndex getKeyIndex() {
+		return _keyIndex;
+	}
+
+	/**
+	 * Returns the value of the key with the id, or <code>null</code> if there
+	 * is none.
+	 */
+	public String getValue(int id) {
+		if ((id < 0) || (id >= _values.length)) {
+			return null;
+		}
+
+		return _values[id];
+	}
+
+	/**
+	 * Returns the length of the array of values, every id from it on has no
+	 * value.
+	 */
+	public int getValuesLength() {
+		return _values.length;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	private final LanguageKeyIndex _keyIndex;
+	private final int _size;
+	private final String[] _values;
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+
+		public Iterator<Map.Entry<String, String>> iterator() {
+			return new EntryIterator();
+		}
+
+		public int size() {
+			return _size;
+		}
+
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+		public EntryIterator() {
+			_advance();
+		}
+
+		public boolean hasNext() {
+			if (_id < _values.length) {
+				return true;
+			}
+
+			return false;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (_id >= _values.length) {
+				throw new NoSuchElementException();
+			}
+
+			Map.Entry<String, String> entry = new LanguageEntry(
+				_keyIndex.getKey(_id), _values[_id]);
+
+			_id++;
+
+			_advance();
+
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void _advance() {
+			while ((_id < _values.length) && (_values[_id] == null)) {
+				_id++;
+			}
+		}
+
+		private int _id;
+
+	}
+
+	private static class LanguageEntry implements Map.Entry<String, String> {
+
+		public LanguageEntry(String key, String value) {
+			_key = key;
+			_value = value;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry<?, ?>)) {
+				return false;
+			}
+
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>)obj;
+
+			if (_key.equals(entry.getKey()) &&
+				_value.equals(entry.getValue())) {
+
+				return true;
+			}
+
+			return false;
+		}
+
+		public String getKey() {
+			return _key;
+		}
+
+		public String getValue() {
+			return _value;
+		}
+
+		public int hashCode() {
+			return _key.hashCode() ^ _value.hashCode();
+		}
+
+		public String setValue(String value) {
+			throw new UnsupportedOperationException();
+		}
+
+		public String toString() {
+			return _key + "=" + _value;
+		}
+
+		private final String _key;
+		private final String _value;
+
+	}
+
+}
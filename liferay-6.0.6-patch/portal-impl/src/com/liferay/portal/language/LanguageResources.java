@@ -29,13 +29,22 @@ import java.io.UnsupportedEncodingException;
 
 import java.net.URL;
 
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Shuyang Zhou
@@ -70,49 +79,267 @@ public class LanguageResources {
 			return null;
 		}
 
-		Map<String, String> languageMap = _languageMaps.get(locale);
+		LanguageMap flattenedLanguageMap = _flattenedLanguageMaps.get(locale);
 
-		if (languageMap == null) {
-			languageMap = _loadLocale(locale);
+		if (flattenedLanguageMap == null) {
+			flattenedLanguageMap = _flattenLanguageMap(locale);
 		}
 
-		String value = languageMap.get(key);
-
-		if (value == null) {
-			return getMessage(_getSuperLocale(locale), key);
-		}
-		else {
-			return value;
-		}
+		return flattenedLanguageMap.get(key);
 	}
 
-	public static Map<String, String> putLanguageMap(
+	public static synchronized Map<String, String> putLanguageMap(
 		Locale locale, Map<String, String> languageMap) {
 
-		Map<String, String> oldLanguageMap = _languageMaps.get(locale);
+		LanguageMap oldLanguageMap = _languageMaps.get(locale);
 
 		if (oldLanguageMap == null) {
-			_loadLocale(locale);
-			oldLanguageMap = _languageMaps.get(locale);
+			oldLanguageMap = _loadLocale(locale);
 		}
 
-		Map<String, String> newLanguageMap = new HashMap<String, String>();
+		Map<String, String> messages = new HashMap<String, String>(
+			oldLanguageMap);
 
-		if (oldLanguageMap != null) {
-			newLanguageMap.putAll(oldLanguageMap);
-		}
+		messages.putAll(languageMap);
 
-		newLanguageMap.putAll(languageMap);
+		_languageMaps.put(locale, _createLanguageMap(locale, messages));
 
-		_languageMaps.put(locale, newLanguageMap);
+		// Only the locales falling back to this one inherit its values
+
+		for (Locale flattenedLocale : _flattenedLanguageMaps.keySet()) {
+			if (_isFallbackLocale(flattenedLocale, locale)) {
+				_flattenedLanguageMaps.remove(flattenedLocale);
+			}
+		}
 
 		return oldLanguageMap;
 	}
 
+	/**
+	 * Loads the messages of the locales and of the locales they fall back to
+	 * on a pool of at most the given number of threads, and builds their
+	 * flattened tables. Only reading the properties files runs in parallel,
+	 * the maps are built one by one under the class lock. The calling thread
+	 * waits until all locales are loaded, the pool's daemon threads are
+	 * discarded afterwards. Locales that aren't preloaded are still loaded
+	 * when they are first used.
+	 */
+	public static void preloadLocales(Locale[] locales, int threads)
+		throws InterruptedException {
+
+		long startTime = System.currentTimeMillis();
+
+		Set<Locale> preloadLocales = new LinkedHashSet<Locale>();
+
+		for (Locale locale : locales) {
+			while ((locale != null) && !_languageMaps.containsKey(locale)) {
+				preloadLocales.add(locale);
+
+				locale = _getSuperLocale(locale);
+			}
+		}
+
+		if (preloadLocales.isEmpty()) {
+			return;
+		}
+
+		ExecutorService executorService = Executors.newFixedThreadPool(
+			Math.max(1, Math.min(threads, preloadLocales.size())),
+			new ThreadFactory() {
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(
+						runnable,
+						"Language Preloader-" +
+							_threadCounter.incrementAndGet());
+
+					thread.setDaemon(true);
+
+					return thread;
+				}
+
+				private AtomicInteger _threadCounter = new AtomicInteger();
+
+			});
+
+		Map<Locale, Future<Map<String, String>>> futures =
+			new LinkedHashMap<Locale, Future<Map<String, String>>>();
+
+		try {
+			for (final Locale locale : preloadLocales) {
+				Callable<Map<String, String>> callable =
+					new Callable<Map<String, String>>() {
+
+					public Map<String, String> call() {
+						long startTime = System.currentTimeMillis();
+
+						Map<String, String> messages = _loadMessages(locale);
+
+						if (_log.isInfoEnabled()) {
+							long time = System.currentTimeMillis() - startTime;
+
+							_log.info(
+								"Preloaded " + messages.size() + " messages " +
+									"of locale \"" + locale + "\" in " + time +
+										" ms");
+						}
+
+						return messages;
+					}
+
+				};
+
+				futures.put(locale, executorService.submit(callable));
+			}
+
+			Map<Locale, Map<String, String>> messagesMap =
+				new LinkedHashMap<Locale, Map<String, String>>();
+
+			for (Map.Entry<Locale, Future<Map<String, String>>> entry :
+					futures.entrySet()) {
+
+				Locale locale = entry.getKey();
+
+				try {
+					messagesMap.put(locale, entry.getValue().get());
+				}
+				catch (ExecutionException ee) {
+					_log.error(
+						"Unable to preload locale \"" + locale + "\"",
+						ee.getCause());
+				}
+			}
+
+			_preloadLanguageMaps(messagesMap);
+		}
+		finally {
+			executorService.shutdownNow();
+		}
+
+		if (_log.isInfoEnabled()) {
+			_log.info(
+				"Preloaded " + preloadLocales.size() + " locales in " +
+					(System.currentTimeMillis() - startTime) + " ms");
+		}
+	}
+
 	public void setConfig(String config) {
 		_config = config;
 	}
 
+	/**
+	 * Creates the map of the messages of the locale, adding their keys to the
+	 * shared key dictionary. A value equal to the one the locale inherits for
+	 * the same key, like an automatic copy of an English message, is replaced
+	 * by the inherited instance so it's stored once.
+	 */
+	private static LanguageMap _createLanguageMap(
+		Locale locale, Map<String, String> messages) {
+
+		Locale superLocale = _getSuperLocale(locale);
+
+		LanguageMap superLanguageMap = null;
+
+		if (superLocale != null) {
+			superLanguageMap = _flattenLanguageMap(superLocale);
+		}
+
+		_keyIndex = _keyIndex.add(messages.keySet());
+
+		int[] ids = new int[messages.size()];
+		String[] values = new String[messages.size()];
+		int length = 0;
+
+		int i = 0;
+
+		for (Map.Entry<String, String> entry : messages.entrySet()) {
+			int id = _keyIndex.getId(entry.getKey());
+			String value = entry.getValue();
+
+			if (superLanguageMap != null) {
+				String superValue = superLanguageMap.getValue(id);
+
+				if (value.equals(superValue)) {
+					value = superValue;
+				}
+			}
+
+			ids[i] = id;
+			values[i] = value;
+
+			length = Math.max(length, id + 1);
+
+			i++;
+		}
+
+		String[] languageMapValues = new String[length];
+
+		for (i = 0; i < ids.length; i++) {
+			languageMapValues[ids[i]] = values[i];
+		}
+
+		return new LanguageMap(_keyIndex, languageMapValues);
+	}
+
+	/**
+	 * Builds the table of the locale with the values it inherits from its
+	 * super locales, so a message is found with one lookup. Locking makes
+	 * sure a table built from a language map that is being replaced by
+	 * {@link #putLanguageMap(Locale, Map)} isn't published, and serializes
+	 * the changes of the key dictionary.
+	 */
+	private static synchronized LanguageMap _flattenLanguageMap(Locale locale) {
+
+		LanguageMap flattenedLanguageMap = _flattenedLanguageMaps.get(locale);
+
+		if (flattenedLanguageMap != null) {
+			return flattenedLanguageMap;
+		}
+
+		LanguageMap languageMap = _languageMaps.get(locale);
+
+		if (languageMap == null) {
+			languageMap = _loadLocale(locale);
+		}
+
+		Locale superLocale = _getSuperLocale(locale);
+
+		if (superLocale == null) {
+			flattenedLanguageMap = languageMap;
+		}
+		else if (languageMap.isEmpty()) {
+
+			// A locale without messages of its own, e.g. one that isn't
+			// translated, shares the table of the locale it falls back to
+
+			flattenedLanguageMap = _flattenLanguageMap(superLocale);
+		}
+		else {
+			LanguageMap superLanguageMap = _flattenLanguageMap(superLocale);
+
+			String[] values = new String[
+				Math.max(
+					superLanguageMap.getValuesLength(),
+					languageMap.getValuesLength())];
+
+			for (int id = 0; id < values.length; id++) {
+				String value = languageMap.getValue(id);
+
+				if (value == null) {
+					value = superLanguageMap.getValue(id);
+				}
+
+				values[id] = value;
+			}
+
+			flattenedLanguageMap = new LanguageMap(_keyIndex, values);
+		}
+
+		_flattenedLanguageMaps.put(locale, flattenedLanguageMap);
+
+		return flattenedLanguageMap;
+	}
+
 	private static Locale _getSuperLocale(Locale locale) {
 		if (Validator.isNotNull(locale.getVariant())) {
 			return new Locale(locale.getLanguage(), locale.getCountry());
@@ -140,17 +367,38 @@ public class LanguageResources {
 		return null;
 	}
 
-	private static Map<String, String> _loadLocale(Locale locale) {
+	private static boolean _isFallbackLocale(
+		Locale locale, Locale fallbackLocale) {
+
+		while (locale != null) {
+			if (locale.equals(fallbackLocale)) {
+				return true;
+			}
+
+			locale = _getSuperLocale(locale);
+		}
+
+		return false;
+	}
+
+	private static LanguageMap _loadLocale(Locale locale) {
+		LanguageMap languageMap = _createLanguageMap(
+			locale, _loadMessages(locale));
+
+		_languageMaps.put(locale, languageMap);
+
+		return languageMap;
+	}
+
+	private static Map<String, String> _loadMessages(Locale locale) {
 		String[] names = StringUtil.split(
 			_config.replace(StringPool.PERIOD, StringPool.SLASH));
 
-		Map<String, String> languageMap = null;
+		Map<String, String> messages = new HashMap<String, String>();
 
 		if (names.length > 0) {
 			String localeName = locale.toString();
 
-			languageMap = new HashMap<String, String>();
-
 			for (String name : names) {
 				StringBundler sb = new StringBundler(4);
 
@@ -171,17 +419,12 @@ public class LanguageResources {
 
 					value = fixValue(value);
 
-					languageMap.put(key, value);
+					messages.put(key, value);
 				}
 			}
 		}
-		else {
-			languageMap = Collections.EMPTY_MAP;
-		}
-
-		_languageMaps.put(locale, languageMap);
 
-		return languageMap;
+		return messages;
 	}
 
 	private static Properties _loadProperties(String name) {
@@ -225,10 +468,51 @@ public class LanguageResources {
 		return properties;
 	}
 
+	/**
+	 * Builds the maps of the preloaded locales, a locale after the locales it
+	 * falls back to. A locale loaded in the meantime keeps its map.
+	 */
+	private static synchronized void _preloadLanguageMaps(
+		Map<Locale, Map<String, String>> messagesMap) {
+
+		for (Locale locale : messagesMap.keySet()) {
+			_preloadLanguageMap(locale, messagesMap);
+		}
+
+		for (Locale locale : messagesMap.keySet()) {
+			_flattenLanguageMap(locale);
+		}
+	}
+
+	private static void _preloadLanguageMap(
+		Locale locale, Map<Locale, Map<String, String>> messagesMap) {
+
+		if (_languageMaps.containsKey(locale)) {
+			return;
+		}
+
+		Map<String, String> messages = messagesMap.get(locale);
+
+		if (messages == null) {
+			return;
+		}
+
+		Locale superLocale = _getSuperLocale(locale);
+
+		if (superLocale != null) {
+			_preloadLanguageMap(superLocale, messagesMap);
+		}
+
+		_languageMaps.put(locale, _createLanguageMap(locale, messages));
+	}
+
 	private static Log _log = LogFactoryUtil.getLog(LanguageResources.class);
 
 	private static String _config;
-	private static Map<Locale, Map<String, String>> _languageMaps =
-		new ConcurrentHashMap<Locale, Map<String, String>>(64);
+	private static Map<Locale, LanguageMap> _flattenedLanguageMaps =
+		new ConcurrentHashMap<Locale, LanguageMap>(64);
+	private static LanguageKeyIndex _keyIndex = new LanguageKeyIndex();
+	private static Map<Locale, LanguageMap> _languageMaps =
+		new ConcurrentHashMap<Locale, LanguageMap>(64);
 
 }
@@ -15,6 +15,9 @@
 package com.liferay.portal.servlet;
 
 import com.liferay.portal.NoSuchLayoutException;
+import com.liferay.portal.deploy.hot.ExtDeployJournal;
+import com.liferay.portal.deploy.hot.ExtDeployStatistics;
+import com.liferay.portal.deploy.hot.ExtHotDeployListener;
 import com.liferay.portal.deploy.hot.PluginPackageHotDeployListener;
 import com.liferay.portal.events.EventsProcessorUtil;
 import com.liferay.portal.events.StartupAction;
@@ -23,6 +26,7 @@ import com.liferay.portal.kernel.cache.ThreadLocalCacheManager;
 import com.liferay.portal.kernel.deploy.hot.HotDeployUtil;
 import com.liferay.portal.kernel.exception.PortalException;
 import com.liferay.portal.kernel.exception.SystemException;
+import com.liferay.portal.kernel.language.LanguageUtil;
 import com.liferay.portal.kernel.log.Log;
 import com.liferay.portal.kernel.log.LogFactoryUtil;
 import com.liferay.portal.kernel.plugin.PluginPackage;
@@ -48,6 +52,7 @@ import com.liferay.portal.kernel.xml.Document;
 import com.liferay.portal.kernel.xml.DocumentException;
 import com.liferay.portal.kernel.xml.Element;
 import com.liferay.portal.kernel.xml.SAXReaderUtil;
+import com.liferay.portal.language.LanguageResources;
 import com.liferay.portal.model.Company;
 import com.liferay.portal.model.Group;
 import com.liferay.portal.model.GroupConstants;
@@ -140,6 +145,17 @@ public class MainServlet extends ActionServlet {
 
 		PortalLifecycleUtil.flushDestroys();
 
+		if (_log.isDebugEnabled()) {
+			_log.debug("Destroy Ext Plugins");
+		}
+
+		try {
+			destroyExt();
+		}
+		catch (Exception e) {
+			_log.error(e, e);
+		}
+
 		List<Portlet> portlets = PortletLocalServiceUtil.getPortlets();
 
 		if (_log.isDebugEnabled()) {
@@ -308,6 +324,17 @@ public class MainServlet extends ActionServlet {
 			_log.error(e, e);
 		}
 
+		if (_log.isDebugEnabled()) {
+			_log.debug("Initialize languages");
+		}
+
+		try {
+			initLanguages();
+		}
+		catch (Exception e) {
+			_log.error(e, e);
+		}
+
 		if (_log.isDebugEnabled()) {
 			_log.debug("Process global startup events");
 		}
@@ -679,6 +706,10 @@ public class MainServlet extends ActionServlet {
 		}
 	}
 
+	protected void destroyExt() throws Exception {
+		ExtHotDeployListener.shutdown();
+	}
+
 	protected void destroyPortlets(List<Portlet> portlets) throws Exception {
 		Iterator<Portlet> itr = portlets.iterator();
 
@@ -834,7 +865,29 @@ public class MainServlet extends ActionServlet {
 	protected void initExt() throws Exception {
 		ServletContext servletContext = getServletContext();
 
+		// Finish Ext Plugin deploys interrupted by a crash before the registry
+		// reads the installed ext-*.xml files
+
+		ExtDeployJournal.recover(PortalUtil.getPortalWebDir());
+
 		ExtRegistry.registerPortal(servletContext);
+
+		ExtDeployStatistics.register();
+	}
+
+	protected void initLanguages() throws Exception {
+		if (!GetterUtil.getBoolean(PropsUtil.get("locales.preload.enabled"))) {
+			return;
+		}
+
+		int threads = GetterUtil.getInteger(
+			PropsUtil.get("locales.preload.threads"), 4);
+
+		// Blocks until the locales are loaded, so the first requests don't
+		// wait for them
+
+		LanguageResources.preloadLocales(
+			LanguageUtil.getAvailableLocales(), threads);
 	}
 
 	protected void initLayoutTemplates(
@@ -869,9 +922,18 @@ public class MainServlet extends ActionServlet {
 		// See LEP-2885. Don't flush hot deploy events until after the portal
 		// has initialized.
 
-		HotDeployUtil.setCapturePrematureEvents(false);
+		// Ext Plugins deployed at startup are installed as one batch
 
-		PortalLifecycleUtil.flushInits();
+		ExtHotDeployListener.captureDeploys();
+
+		try {
+			HotDeployUtil.setCapturePrematureEvents(false);
+
+			PortalLifecycleUtil.flushInits();
+		}
+		finally {
+			ExtHotDeployListener.flushDeploys();
+		}
 	}
 
 	protected void initPortletApp(
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The content of an ext-[servlet-context-name].xml: the files the Ext Plugin
+ * installs, and the merged file patterns its merged files match, e.g.
+ * struts-config-ext.xml or content/Language-ext. Is immutable.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtManifest {
+
+	public ExtManifest(
+		Collection<String> files, Collection<String> mergedFiles) {
+
+		if (files instanceof ExtPathTrie) {
+			_files = (ExtPathTrie)files;
+		}
+		else {
+			_files = new ExtPathTrie(files);
+		}
+
+		_mergedFiles = Collections.unmodifiableSet(
+			new TreeSet<String>(mergedFiles));
+	}
+
+	/**
+	 * Returns the files that aren't merged.
+	 */
+	public ExtPathTrie getFiles() {
+		return _files;
+	}
+
+	/**
+	 * Returns the entries of {@link ExtRegistry#SUPPORTED_MERGING_FILES} and
+	 * of the ext.merged.files.patterns property matched by the merged files.
+	 */
+	public Set<String> getMergedFiles() {
+		return _mergedFiles;
+	}
+
+	private final ExtPathTrie _files;
+	private final Set<String> _mergedFiles;
+
+}
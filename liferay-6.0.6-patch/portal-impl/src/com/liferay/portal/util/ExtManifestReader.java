@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the files listed in an ext-[servlet-context-name].xml. The manifest is
+ * streamed with StAX and only the texts of the file elements are kept, merged
+ * files are classified by their pattern while reading.
+ *
+ * <p>
+ * Manifests are cached by URL, last modified time, and length, so the
+ * conflict check and the registration of a deployed plugin parse its
+ * manifest once. A cached manifest is returned without opening its stream. The entries of a plugin are evicted when it's unregistered.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtManifestReader {
+
+	/**
+	 * Drops the cached manifests read from the resource path, in the plugin
+	 * and in the portal.
+	 */
+	public static void evict(String resourcePath) {
+		Iterator<CachedManifest> itr = _cachedManifests.values().iterator();
+
+		while (itr.hasNext()) {
+			CachedManifest cachedManifest = itr.next();
+
+			if (cachedManifest._resourcePath.equals(resourcePath)) {
+				itr.remove();
+			}
+		}
+	}
+
+	public static ExtManifest read(
+			ServletContext servletContext, String resourcePath)
+		throws Exception {
+
+		URL url = servletContext.getResource(resourcePath);
+
+		if (url == null) {
+
+			// The resource may still be served as a stream, it just can't be
+			// cached
+
+			InputStream is = servletContext.getResourceAsStream(resourcePath);
+
+			if (is == null) {
+				throw new FileNotFoundException(resourcePath);
+			}
+
+			try {
+				return _read(new BufferedInputStream(is));
+			}
+			finally {
+				is.close();
+			}
+		}
+
+		String key = url.toExternalForm();
+
+		long lastModified = 0;
+		long length = -1;
+
+		URLConnection urlConnection = null;
+
+		if (url.getProtocol().equals("file")) {
+
+			// A file connection opens the file to read its headers
+
+			File file = new File(url.toURI());
+
+			lastModified = file.lastModified();
+			length = file.length();
+		}
+		else {
+			urlConnection = url.openConnection();
+
+			lastModified = urlConnection.getLastModified();
+			length = urlConnection.getContentLength();
+		}
+
+		CachedManifest cachedManifest = _cachedManifests.get(key);
+
+		if ((cachedManifest != null) &&
+			(cachedManifest._lastModified == lastModified) &&
+			(cachedManifest._length == length)) {
+
+			return cachedManifest._manifest;
+		}
+
+		InputStream is = null;
+
+		if (urlConnection == null) {
+			is = url.openStream();
+		}
+		else {
+			is = urlConnection.getInputStream();
+		}
+
+		ExtManifest manifest = null;
+
+		try {
+			manifest = _read(new BufferedInputStream(is));
+		}
+		finally {
+			is.close();
+		}
+
+		// Without the time a changed manifest couldn't be told apart
+
+		if (lastModified > 0) {
+			_cachedManifests.put(
+				key,
+				new CachedManifest(
+					resourcePath, lastModified, length, manifest));
+		}
+
+		return manifest;
+	}
+
+	private static ExtManifest _read(InputStream is) throws Exception {
+		List<String> files = new ArrayList<String>();
+		Set<String> mergedFiles = new HashSet<String>();
+
+		XMLStreamReader xmlStreamReader =
+			_xmlInputFactory.createXMLStreamReader(is);
+
+		try {
+			int depth = 0;
+			boolean filesElement = false;
+
+			while (xmlStreamReader.hasNext()) {
+				int event = xmlStreamReader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+
+					String localName = xmlStreamReader.getLocalName();
+
+					if ((depth == 2) && localName.equals("files")) {
+						filesElement = true;
+					}
+					else if ((depth == 3) && filesElement &&
+							 localName.equals("file")) {
+
+						// Reads up to the end element
+
+						String file = xmlStreamReader.getElementText();
+
+						depth--;
+
+						String mergedFile = ExtRegistry.getMergedFile(file);
+
+						if (mergedFile == null) {
+							files.add(file);
+						}
+						else {
+							mergedFiles.add(mergedFile);
+						}
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (depth == 2) {
+						filesElement = false;
+					}
+
+					depth--;
+				}
+			}
+		}
+		finally {
+			xmlStreamReader.close();
+		}
+
+		return new ExtManifest(files, mergedFiles);
+	}
+
+	private static Map<String, CachedManifest> _cachedManifests =
+		new ConcurrentHashMap<String, CachedManifest>();
+	private static XMLInputFactory _xmlInputFactory;
+
+	static {
+		_xmlInputFactory = XMLInputFactory.newInstance();
+
+		_xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		_xmlInputFactory.setProperty(
+			XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private static class CachedManifest {
+
+		public CachedManifest(
+			String resourcePath, long lastModified, long length,
+			ExtManifest manifest) {
+
+			_resourcePath = resourcePath;
+			_lastModified = lastModified;
+			_length = length;
+			_manifest = manifest;
+		}
+
+		private final long _lastModified;
+		private final long _length;
+		private final ExtManifest _manifest;
+		private final String _resourcePath;
+
+	}
+
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Tells whether a path contains any of a fixed set of patterns. The patterns
+ * are compiled into an Aho-Corasick automaton with all failure transitions
+ * resolved in advance, so a path is matched in one table lookup per character
+ * no matter how many patterns there are.
+ *
+ * <p>
+ * Characters that don't occur in any pattern share one column of the table.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtMergedFileMatcher {
+
+	public ExtMergedFileMatcher(Collection<String> patterns) {
+		char maxChar = 0;
+
+		for (String pattern : patterns) {
+			for (int i = 0; i < pattern.length(); i++) {
+				maxChar = (char)Math.max(maxChar, pattern.charAt(i));
+			}
+		}
+
+		_charClasses = new int[maxChar + 1];
+
+		int charClassesCount = 1;
+
+		for (String pattern : patterns) {
+			for (int i = 0; i < pattern.length(); i++) {
+				char c = pattern.charAt(i);
+
+				if (_charClasses[c] == 0) {
+					_charClasses[c] = charClassesCount++;
+				}
+			}
+		}
+
+		List<int[]> gotos = new ArrayList<int[]>();
+		List<String> matches = new ArrayList<String>();
+
+		gotos.add(_newTransitions(charClassesCount));
+		matches.add(null);
+
+		for (String pattern : patterns) {
+			if (pattern.length() == 0) {
+				continue;
+			}
+
+			int state = 0;
+
+			for (int i = 0; i < pattern.length(); i++) {
+				int charClass = _charClasses[pattern.charAt(i)];
+
+				int nextState = gotos.get(state)[charClass];
+
+				if (nextState == -1) {
+					nextState = gotos.size();
+
+					gotos.get(state)[charClass] = nextState;
+
+					gotos.add(_newTransitions(charClassesCount));
+					matches.add(null);
+				}
+
+				state = nextState;
+			}
+
+			if (matches.get(state) == null) {
+				matches.set(state, pattern);
+			}
+		}
+
+		_transitions = gotos.toArray(new int[gotos.size()][]);
+		_matches = matches.toArray(new String[matches.size()]);
+
+		_resolveFailures(charClassesCount);
+	}
+
+	/**
+	 * Returns the first pattern found in the path, or <code>null</code> if the
+	 * path contains none of them. Of patterns ending at the same character,
+	 * the longest one is returned.
+	 */
+	public String match(String path) {
+		int state = 0;
+
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+
+			int charClass = 0;
+
+			if (c < _charClasses.length) {
+				charClass = _charClasses[c];
+			}
+
+			state = _transitions[state][charClass];
+
+			if (_matches[state] != null) {
+				return _matches[state];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the path contains at least one of the
+	 * patterns.
+	 */
+	public boolean matches(String path) {
+		if (match(path) != null) {
+			return true;
+		}
+
+		return false;
+	}
+
+	private int[] _newTransitions(int charClassesCount) {
+		int[] transitions = new int[charClassesCount];
+
+		for (int i = 0; i < charClassesCount; i++) {
+			transitions[i] = -1;
+		}
+
+		return transitions;
+	}
+
+	/**
+	 * Replaces the missing transitions with the ones of the failure state,
+	 * visiting the states breadth first so the failure state is always
+	 * resolved already. A state that doesn't end a pattern matches the
+	 * pattern of its failure state, which is the longest pattern ending there.
+	 */
+	private void _resolveFailures(int charClassesCount) {
+		int[] failures = new int[_transitions.length];
+
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+
+		for (int charClass = 0; charClass < charClassesCount; charClass++) {
+			int state = _transitions[0][charClass];
+
+			if (state == -1) {
+				_transitions[0][charClass] = 0;
+			}
+			else {
+				failures[state] = 0;
+
+				queue.add(state);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			int state = queue.removeFirst();
+
+			if (_matches[state] == null) {
+				_matches[state] = _matches[failures[state]];
+			}
+
+			for (int charClass = 0; charClass < charClassesCount;
+					charClass++) {
+
+				int nextState = _transitions[state][charClass];
+
+				int failureNextState = _transitions[failures[state]][charClass];
+
+				if (nextState == -1) {
+					_transitions[state][charClass] = failureNextState;
+				}
+				else {
+					failures[nextState] = failureNextState;
+
+					queue.add(nextState);
+				}
+			}
+		}
+	}
+
+	private int[] _charClasses;
+	private String[] _matches;
+	private int[][] _transitions;
+
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Immutable set of slash separated paths stored as a trie of path segments.
+ * The segment names are interned and a chain of directories with a single
+ * child is kept in one node, so the long common prefixes of Ext Plugin files
+ * like ext-web/docroot/html/portlet/ are stored once.
+ *
+ * <p>
+ * The paths are iterated in the order of their segments, which differs from
+ * the natural order of the paths only where a segment is a prefix of its
+ * sibling. {@link #getSubtree(String)} returns the paths under a directory as
+ * a view sharing the nodes of this trie.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtPathTrie extends AbstractSet<String> {
+
+	public ExtPathTrie(Collection<String> paths) {
+		Builder rootBuilder = new Builder();
+
+		for (String path : paths) {
+			Builder builder = rootBuilder;
+
+			for (String segment : _split(path)) {
+				Builder childBuilder = builder._children.get(segment);
+
+				if (childBuilder == null) {
+					childBuilder = new Builder();
+
+					builder._children.put(segment.intern(), childBuilder);
+				}
+
+				builder = childBuilder;
+			}
+
+			builder._file = true;
+		}
+
+		_node = _toNode(new ArrayList<String>(), rootBuilder);
+		_parentPath = null;
+	}
+
+	public boolean contains(Object object) {
+		if (!(object instanceof String)) {
+			return false;
+		}
+
+		String path = (String)object;
+
+		if (_parentPath != null) {
+			if (!path.startsWith(_parentPath) ||
+				(path.length() <= _parentPath.length()) ||
+				(path.charAt(_parentPath.length()) != '/')) {
+
+				return false;
+			}
+
+			path = path.substring(_parentPath.length() + 1);
+		}
+
+		String[] segments = _split(path);
+
+		Node node = _node;
+		int index = 0;
+
+		while (true) {
+			for (String segment : node._segments) {
+				if ((index == segments.length) ||
+					!segment.equals(segments[index])) {
+
+					return false;
+				}
+
+				index++;
+			}
+
+			if (index == segments.length) {
+				return node._file;
+			}
+
+			node = node.getChild(segments[index]);
+
+			if (node == null) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Returns the paths under the directory. The directory may end with a
+	 * slash, a path equal to the directory itself isn't returned.
+	 */
+	public ExtPathTrie getSubtree(String dir) {
+		if (dir.endsWith("/")) {
+			dir = dir.substring(0, dir.length() - 1);
+		}
+
+		if (_parentPath != null) {
+			if (dir.equals(_parentPath)) {
+				return this;
+			}
+
+			if (!dir.startsWith(_parentPath + "/")) {
+				return _EMPTY;
+			}
+
+			dir = dir.substring(_parentPath.length() + 1);
+		}
+
+		String[] segments = _split(dir);
+
+		Node node = _node;
+		String parentPath = _parentPath;
+		int index = 0;
+
+		while (true) {
+			for (String segment : node._segments) {
+				if (index == segments.length) {
+
+					// The directory ends inside the node, so the node and all
+					// of its paths are under it
+
+					return new ExtPathTrie(node, parentPath);
+				}
+
+				if (!segment.equals(segments[index])) {
+					return _EMPTY;
+				}
+
+				index++;
+			}
+
+			parentPath = _join(parentPath, node._segments);
+
+			if (index == segments.length) {
+				int size = node._size;
+
+				if (node._file) {
+					size--;
+				}
+
+				return new ExtPathTrie(
+					new Node(new String[0], false, node._children, size),
+					parentPath);
+			}
+
+			node = node.getChild(segments[index]);
+
+			if (node == null) {
+				return _EMPTY;
+			}
+		}
+	}
+
+	public Iterator<String> iterator() {
+		return new PathIterator();
+	}
+
+	public int size() {
+		return _node._size;
+	}
+
+	private static String _join(String parentPath, String[] segments) {
+		if (segments.length == 0) {
+			return parentPath;
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		if (parentPath != null) {
+			sb.append(parentPath);
+			sb.append('/');
+		}
+
+		for (int i = 0; i < segments.length; i++) {
+			if (i > 0) {
+				sb.append('/');
+			}
+
+			sb.append(segments[i]);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Splits the path at every slash, keeping empty segments so the path can
+	 * be joined back.
+	 */
+	private static String[] _split(String path) {
+		List<String> segments = new ArrayList<String>();
+
+		int start = 0;
+
+		while (true) {
+			int pos = path.indexOf('/', start);
+
+			if (pos == -1) {
+				segments.add(path.substring(start));
+
+				break;
+			}
+
+			segments.add(path.substring(start, pos));
+
+			start = pos + 1;
+		}
+
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	/**
+	 * Creates the node of the builder, merging it with its descendants while
+	 * they aren't paths and have a single child. The root is never merged.
+	 */
+	private static Node _toNode(List<String> segments, Builder builder) {
+		while (!segments.isEmpty() && !builder._file &&
+			   (builder._children.size() == 1)) {
+
+			Map.Entry<String, Builder> entry =
+				builder._children.entrySet().iterator().next();
+
+			segments.add(entry.getKey());
+
+			builder = entry.getValue();
+		}
+
+		Node[] children = new Node[builder._children.size()];
+		int size = 0;
+
+		if (builder._file) {
+			size++;
+		}
+
+		int i = 0;
+
+		for (Map.Entry<String, Builder> entry :
+				builder._children.entrySet()) {
+
+			List<String> childSegments = new ArrayList<String>();
+
+			childSegments.add(entry.getKey());
+
+			children[i] = _toNode(childSegments, entry.getValue());
+
+			size += children[i]._size;
+
+			i++;
+		}
+
+		return new Node(
+			segments.toArray(new String[segments.size()]), builder._file,
+			children, size);
+	}
+
+	private ExtPathTrie(Node node, String parentPath) {
+		_node = node;
+		_parentPath = parentPath;
+	}
+
+	private static final ExtPathTrie _EMPTY = new ExtPathTrie(
+		new ArrayList<String>());
+
+	private final Node _node;
+	private final String _parentPath;
+
+	private static class Builder {
+
+		private Map<String, Builder> _children = new TreeMap<String, Builder>();
+		private boolean _file;
+
+	}
+
+	private static class Node {
+
+		public Node(
+			String[] segments, boolean file, Node[] children, int size) {
+
+			_segments = segments;
+			_file = file;
+			_children = children;
+			_size = size;
+		}
+
+		/**
+		 * Returns the child whose first segment is the given one. The children
+		 * are sorted by their first segments.
+		 */
+		public Node getChild(String segment) {
+			int low = 0;
+			int high = _children.length - 1;
+
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+
+				int value = _children[middle]._segments[0].compareTo(segment);
+
+				if (value < 0) {
+					low = middle + 1;
+				}
+				else if (value > 0) {
+					high = middle - 1;
+				}
+				else {
+					return _children[middle];
+				}
+			}
+
+			return null;
+		}
+
+		private final Node[] _children;
+		private final boolean _file;
+		private final String[] _segments;
+		private final int _size;
+
+	}
+
+	private class PathIterator implements Iterator<String> {
+
+		public PathIterator() {
+			_nodes.add(_node);
+			_parentPaths.add(_parentPath);
+
+			_next = _advance();
+		}
+
+		public boolean hasNext() {
+			if (_next != null) {
+				return true;
+			}
+
+			return false;
+		}
+
+		public String next() {
+			if (_next == null) {
+				throw new NoSuchElementException();
+			}
+
+			String next = _next;
+
+			_next = _advance();
+
+			return next;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Visits the nodes depth first, a node before its children, and
+		 * returns the path of the next node that is a path.
+		 */
+		private String _advance() {
+			while (!_nodes.isEmpty()) {
+				int last = _nodes.size() - 1;
+
+				Node node = _nodes.remove(last);
+				String path = _join(_parentPaths.remove(last), node._segments);
+
+				for (int i = node._children.length - 1; i >= 0; i--) {
+					_nodes.add(node._children[i]);
+					_parentPaths.add(path);
+				}
+
+				if (node._file) {
+					return path;
+				}
+			}
+
+			return null;
+		}
+
+		private String _next;
+		private List<Node> _nodes = new ArrayList<Node>();
+		private List<String> _parentPaths = new ArrayList<String>();
+
+	}
+
+}
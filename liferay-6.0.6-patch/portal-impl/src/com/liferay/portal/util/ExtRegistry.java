@@ -14,33 +14,172 @@
 
 package com.liferay.portal.util;
 
-import com.liferay.portal.kernel.xml.Document;
-import com.liferay.portal.kernel.xml.Element;
-import com.liferay.portal.kernel.xml.SAXReaderUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletContext;
 
 /**
+ * Keeps the Ext Plugins that are installed in the portal and the files they
+ * install.
+ *
+ * <p>
+ * The registry is an immutable snapshot published through an atomic
+ * reference. Registering or unregistering a plugin copies the snapshot and
+ * swaps it in, so reads never lock and always see one consistent state.
+ * </p>
+ *
+ * <p>
+ * Every change increments the version of the registry. The changes of a
+ * deploy are queued with the merged file categories the plugin contributes
+ * to, and published to the {@link ExtRegistryListener}s by {@link
+ * #publishEvents()} once the deploy is committed.
+ * </p>
+ *
  * @author Brian Wing Shun Chan
  */
 public class ExtRegistry {
 
 	public static Set<String> getFiles(String servletContextName){
-		return Collections.unmodifiableSet(_extMap.get(servletContextName).getFiles());
+		return _snapshot.get().getRegInfo(servletContextName).getFiles();
+	}
+
+	/**
+	 * Returns the manifest the plugin is registered with, or <code>null</code>
+	 * if the plugin isn't registered.
+	 */
+	public static ExtManifest getManifest(String servletContextName) {
+		ExtRegistryInfo regInfo = _snapshot.get().getRegInfo(
+			servletContextName);
+
+		if (regInfo == null) {
+			return null;
+		}
+
+		return regInfo.getManifest();
+	}
+
+	/**
+	 * Returns the merged file categories of the plugin, see {@link
+	 * #getMergedFile(String)}.
+	 */
+	public static Set<String> getMergedFiles(String servletContextName) {
+		return _snapshot.get().getRegInfo(servletContextName).getMergedFiles();
+	}
+
+	/**
+	 * Returns the files of the plugin under the directory, e.g. the web files
+	 * under ext-web/docroot/.
+	 */
+	public static Set<String> getFiles(String servletContextName, String dir) {
+		ExtRegistryInfo regInfo = _snapshot.get().getRegInfo(
+			servletContextName);
+
+		return regInfo.getFiles().getSubtree(dir);
 	}
 
 	public static void unregisterExt(String servletContextName){
-		_extMap.remove(servletContextName);
+		while (true) {
+			Snapshot snapshot = _snapshot.get();
+
+			ExtRegistryInfo regInfo = snapshot.getRegInfo(servletContextName);
+
+			if (regInfo == null) {
+				return;
+			}
+
+			Snapshot newSnapshot = snapshot.unregister(servletContextName);
+
+			if (_snapshot.compareAndSet(snapshot, newSnapshot)) {
+				ExtManifestReader.evict(
+					"/WEB-INF/ext-" + servletContextName + ".xml");
+
+				_pendingEvents.add(
+					new ExtRegistryEvent(
+						ExtRegistryEvent.TYPE_UNREGISTER, servletContextName,
+						regInfo.getMergedFiles(), newSnapshot.getVersion()));
+
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds a listener notified of the registered and unregistered plugins, on
+	 * the thread that publishes the events.
+	 */
+	public static void addListener(ExtRegistryListener listener) {
+		_listeners.add(listener);
+	}
+
+	public static void removeListener(ExtRegistryListener listener) {
+		_listeners.remove(listener);
+	}
+
+	/**
+	 * Drops the queued events, e.g. after a failed deploy restored the
+	 * registry.
+	 */
+	public static void discardEvents() {
+		synchronized (_pendingEvents) {
+			_pendingEvents.clear();
+		}
+	}
+
+	/**
+	 * Notifies the listeners of the queued events in the order of their
+	 * versions. Called once the files of a deploy are in place.
+	 */
+	public static void publishEvents() {
+		List<ExtRegistryEvent> events = null;
+
+		synchronized (_pendingEvents) {
+			events = new ArrayList<ExtRegistryEvent>(_pendingEvents);
+
+			_pendingEvents.clear();
+		}
+
+		Collections.sort(
+			events,
+			new Comparator<ExtRegistryEvent>() {
+
+				public int compare(
+					ExtRegistryEvent event1, ExtRegistryEvent event2) {
+
+					if (event1.getVersion() < event2.getVersion()) {
+						return -1;
+					}
+					else if (event1.getVersion() > event2.getVersion()) {
+						return 1;
+					}
+					else {
+						return 0;
+					}
+				}
+
+			});
+
+		for (ExtRegistryEvent event : events) {
+			_fireEvent(event);
+		}
 	}
 
 	public static Map<String, Set<String>> getConflicts(
@@ -49,67 +188,99 @@ public class ExtRegistry {
 
 		String servletContextName = servletContext.getServletContextName();
 
-		Set<String> files = _readExtFiles(
-			servletContext, "/WEB-INF/ext-" + servletContextName + ".xml");
+		Set<String> files = ExtManifestReader.read(
+			servletContext,
+			"/WEB-INF/ext-" + servletContextName + ".xml").getFiles();
+
+		Snapshot snapshot = _snapshot.get();
 
 		Map<String, Set<String>> conflicts = new HashMap<String, Set<String>>();
 
-		for(ExtRegistryInfo regInfo : _extMap.values()){
-			String curServletContextName = regInfo.getServletContext().getServletContextName();
-			Set<String> curFiles = regInfo.getFiles();
+		for (String file : files) {
+			String curServletContextName = snapshot.getOwner(file);
 
-			for (String file : files) {
-				if (!curFiles.contains(file)) {
-					continue;
-				}
+			// a redeployed plugin doesn't conflict with its previous version
+
+			if ((curServletContextName == null) ||
+				curServletContextName.equals(servletContextName)) {
 
-				Set<String> conflictFiles = conflicts.get(
-					curServletContextName);
+				continue;
+			}
 
-				if (conflictFiles == null) {
-					conflictFiles = new TreeSet<String>();
+			Set<String> conflictFiles = conflicts.get(curServletContextName);
 
-					conflicts.put(curServletContextName, conflictFiles);
-				}
+			if (conflictFiles == null) {
+				conflictFiles = new TreeSet<String>();
 
-				conflictFiles.add(file);
+				conflicts.put(curServletContextName, conflictFiles);
 			}
+
+			conflictFiles.add(file);
 		}
 
 		return conflicts;
 	}
 
+	/**
+	 * Returns the entry of {@link #SUPPORTED_MERGING_FILES}, or the pattern of
+	 * the ext.merged.files.patterns property, the file matches, or
+	 * <code>null</code> if the file isn't merged.
+	 */
+	public static String getMergedFile(String name) {
+		return _mergedFileMatcher.match(name);
+	}
+
+	/**
+	 * Returns the name of the registered plugin that installs the file, or
+	 * <code>null</code> if no plugin does. The file is a path relative to the
+	 * plugin's WEB-INF, as listed in its ext-[servlet-context-name].xml.
+	 */
+	public static String getOwner(String file) {
+		return _snapshot.get().getOwner(file);
+	}
+
 	public static Set<String> getServletContextNames() {
-		return Collections.unmodifiableSet(_extMap.keySet());
+		return _snapshot.get().getServletContextNames();
 	}
+
 	public static Set<ServletContext> getServletContexts() {
-		Set<ServletContext> result = new HashSet<ServletContext>(_extMap.size());
-		for(ExtRegistryInfo info : _extMap.values()){
-			result.add(info.getServletContext());
-		}
-		return Collections.unmodifiableSet(result);
+		return _snapshot.get().getServletContexts();
+	}
+
+	/**
+	 * Returns the version of the registry, which is incremented every time a
+	 * plugin is registered or unregistered. Events carry the version they
+	 * created, so a cache can tell whether it missed a change.
+	 */
+	public static long getVersion() {
+		return _snapshot.get().getVersion();
 	}
 
 	public static ServletContext getServletContext(String servletContextName) {
-		if(!isRegistered(servletContextName)){
+		ExtRegistryInfo regInfo = _snapshot.get().getRegInfo(
+			servletContextName);
+
+		if (regInfo == null) {
 			return null;
 		}
-		return _extMap.get(servletContextName).getServletContext();
+
+		return regInfo.getServletContext();
 	}
 
 	public static boolean isRegistered(String servletContextName) {
-		if (_extMap.containsKey(servletContextName)) {
-			return true;
-		}
-		else {
-			return false;
-		}
+		return _snapshot.get().isRegistered(servletContextName);
 	}
 
 	public static void updateRegisteredServletContext(ServletContext ctx){
-		String servletContextName = ctx.getServletContextName();
-		if(isRegistered(servletContextName)){
-			_extMap.get(servletContextName).setServletContext(ctx);
+		while (true) {
+			Snapshot snapshot = _snapshot.get();
+
+			if (!snapshot.isRegistered(ctx.getServletContextName()) ||
+				_snapshot.compareAndSet(
+					snapshot, snapshot.updateServletContext(ctx))) {
+
+				return;
+			}
 		}
 	}
 
@@ -118,10 +289,27 @@ public class ExtRegistry {
 
 		String servletContextName = servletContext.getServletContextName();
 
-		Set<String> files = _readExtFiles(
+		ExtManifest manifest = ExtManifestReader.read(
 			servletContext, "/WEB-INF/ext-" + servletContextName + ".xml");
 
-		_extMap.put(servletContextName, new ExtRegistryInfo(servletContext, files));
+		_pendingEvents.add(
+			_register(
+				new ExtRegistryInfo(
+					servletContextName, servletContext, manifest)));
+	}
+
+	/**
+	 * Registers the plugin with a manifest read before, e.g. to restore the
+	 * previous version of a plugin whose redeploy failed.
+	 */
+	public static void registerExt(
+		String servletContextName, ServletContext servletContext,
+		ExtManifest manifest) {
+
+		_pendingEvents.add(
+			_register(
+				new ExtRegistryInfo(
+					servletContextName, servletContext, manifest)));
 	}
 
 	public static void registerPortal(ServletContext servletContext)
@@ -130,6 +318,15 @@ public class ExtRegistry {
 		Set<String> resourcePaths = servletContext.getResourcePaths(
 			"/WEB-INF");
 
+		ExtRegistryCache cache = null;
+
+		String webInfDir = servletContext.getRealPath("/WEB-INF");
+
+		if (webInfDir != null) {
+			cache = ExtRegistryCache.read(
+				new File(webInfDir), _mergedFilePatterns);
+		}
+
 		for (String resourcePath : resourcePaths) {
 			if (resourcePath.startsWith("/WEB-INF/ext-") &&
 				resourcePath.endsWith("-ext.xml")) {
@@ -137,50 +334,122 @@ public class ExtRegistry {
 				String servletContextName = resourcePath.substring(
 					13, resourcePath.length() - 4);
 
-				Set<String> files = _readExtFiles(
-					servletContext, resourcePath);
+				ExtManifest manifest = null;
 
-				_extMap.put(servletContextName, new ExtRegistryInfo(null, files));
+				if (cache != null) {
+					manifest = cache.getManifest(servletContextName);
+				}
+
+				if (manifest == null) {
+					manifest = ExtManifestReader.read(
+						servletContext, resourcePath);
+				}
+
+				// The plugins installed before the portal started aren't
+				// changes
+
+				_register(
+					new ExtRegistryInfo(servletContextName, null, manifest));
 			}
 		}
 	}
 
-	private static Set<String> _readExtFiles(
-			ServletContext servletContext, String resourcePath)
-		throws Exception {
+	/**
+	 * Writes the files of the registered plugins to the cache read by {@link
+	 * #registerPortal(ServletContext)}, so the next portal start doesn't have
+	 * to parse the ext xml files copied to the portal.
+	 */
+	public static void writeCache(String portalWebDir) throws IOException {
+		Map<String, ExtManifest> manifests =
+			new LinkedHashMap<String, ExtManifest>();
+
+		for (ExtRegistryInfo regInfo : _snapshot.get().getRegInfos()) {
+			manifests.put(
+				regInfo.getServletContextName(), regInfo.getManifest());
+		}
 
-		Set<String> files = new TreeSet<String>();
+		ExtRegistryCache.write(
+			new File(portalWebDir, "WEB-INF"), _mergedFilePatterns, manifests);
+	}
 
-		Document document = SAXReaderUtil.read(
-			servletContext.getResourceAsStream(resourcePath));
+	private static void _fireEvent(ExtRegistryEvent event) {
+		for (ExtRegistryListener listener : _listeners) {
+			try {
+				listener.registryChanged(event);
+			}
+			catch (Exception e) {
+				_log.error(
+					"Unable to notify " + listener + " of the Ext Plugin " +
+						event.getServletContextName(),
+					e);
+			}
+		}
+	}
 
-		Element rootElement = document.getRootElement();
+	private static ExtRegistryEvent _register(ExtRegistryInfo regInfo) {
+		while (true) {
+			Snapshot snapshot = _snapshot.get();
 
-		Element filesElement = rootElement.element("files");
+			Snapshot newSnapshot = snapshot.register(regInfo);
 
-		List<Element> fileElements = filesElement.elements("file");
+			if (_snapshot.compareAndSet(snapshot, newSnapshot)) {
+				String servletContextName = regInfo.getServletContextName();
 
-		for (Element fileElement : fileElements) {
-			String fileName = fileElement.getText();
-			if (!isMergedFile(fileName)) {
-				files.add(fileName);
+				// A redeployed plugin may have dropped merged files of its
+				// previous version
+
+				Set<String> mergedFiles = new TreeSet<String>(
+					regInfo.getMergedFiles());
+
+				ExtRegistryInfo oldRegInfo = snapshot.getRegInfo(
+					servletContextName);
+
+				if (oldRegInfo != null) {
+					mergedFiles.addAll(oldRegInfo.getMergedFiles());
+				}
+
+				return new ExtRegistryEvent(
+					ExtRegistryEvent.TYPE_REGISTER, servletContextName,
+					mergedFiles, newSnapshot.getVersion());
 			}
 		}
-
-		return files;
 	}
 
 	public static boolean isMergedFile(String name) {
-		for (String mergedFile : SUPPORTED_MERGING_FILES) {
-			if (name.contains(mergedFile)) {
-				return true;
+		return _mergedFileMatcher.matches(name);
+	}
+
+	private static List<String> _getMergedFilePatterns() {
+		List<String> patterns = new ArrayList<String>(SUPPORTED_MERGING_FILES);
+
+		String[] customPatterns = PropsUtil.getArray(
+			"ext.merged.files.patterns");
+
+		for (String pattern : customPatterns) {
+
+			// Match the platform separator the file paths and the built-in
+			// patterns use
+
+			pattern = pattern.trim();
+			pattern = pattern.replace('/', File.separatorChar);
+			pattern = pattern.replace('\\', File.separatorChar);
+
+			if (pattern.length() > 0) {
+				patterns.add(pattern);
 			}
 		}
-		return false;
+
+		return Collections.unmodifiableList(patterns);
 	}
 
-	private static Map<String, ExtRegistryInfo> _extMap =
-		new HashMap<String, ExtRegistryInfo>();
+	private static Log _log = LogFactoryUtil.getLog(ExtRegistry.class);
+
+	private static List<ExtRegistryListener> _listeners =
+		new CopyOnWriteArrayList<ExtRegistryListener>();
+	private static List<ExtRegistryEvent> _pendingEvents =
+		Collections.synchronizedList(new ArrayList<ExtRegistryEvent>());
+	private static AtomicReference<Snapshot> _snapshot =
+		new AtomicReference<Snapshot>(new Snapshot());
 	public static final List<String> SUPPORTED_MERGING_FILES = 
 		Arrays.asList(new String[]{
 			"tiles-defs-ext.xml",
@@ -216,32 +485,252 @@ public class ExtRegistry {
 			"ext-util-java",
 			"ext-util-taglib"
 		});
+
+	private static List<String> _mergedFilePatterns = _getMergedFilePatterns();
+	private static ExtMergedFileMatcher _mergedFileMatcher =
+		new ExtMergedFileMatcher(_mergedFilePatterns);
+
+	private static class Snapshot {
+
+		public Snapshot() {
+			this(
+				new LinkedHashMap<String, ExtRegistryInfo>(),
+				new HashMap<String, String[]>(), 0);
+		}
+
+		public String getOwner(String file) {
+			String[] servletContextNames = _owners.get(file);
+
+			if (servletContextNames == null) {
+				return null;
+			}
+
+			return servletContextNames[0];
+		}
+
+		public ExtRegistryInfo getRegInfo(String servletContextName) {
+			return _regInfos.get(servletContextName);
+		}
+
+		public Set<String> getServletContextNames() {
+			return _servletContextNames;
+		}
+
+		public Set<ServletContext> getServletContexts() {
+			return _servletContexts;
+		}
+
+		public long getVersion() {
+			return _version;
+		}
+
+		public Collection<ExtRegistryInfo> getRegInfos() {
+			return _regInfos.values();
+		}
+
+		public boolean isRegistered(String servletContextName) {
+			return _regInfos.containsKey(servletContextName);
+		}
+
+		public Snapshot register(ExtRegistryInfo regInfo) {
+			String servletContextName = regInfo.getServletContextName();
+
+			Map<String, ExtRegistryInfo> regInfos =
+				new LinkedHashMap<String, ExtRegistryInfo>(_regInfos);
+			Map<String, String[]> owners = new HashMap<String, String[]>(
+				_owners);
+
+			ExtRegistryInfo oldRegInfo = regInfos.put(
+				servletContextName, regInfo);
+
+			// A redeployed plugin keeps its place for the files both of its
+			// versions list
+
+			if (oldRegInfo != null) {
+				for (String file : oldRegInfo.getFiles()) {
+					if (!regInfo.getFiles().contains(file)) {
+						_removeOwner(owners, file, servletContextName);
+					}
+				}
+			}
+
+			for (String file : regInfo.getFiles()) {
+				if ((oldRegInfo == null) ||
+					!oldRegInfo.getFiles().contains(file)) {
+
+					_addOwner(owners, file, servletContextName);
+				}
+			}
+
+			return new Snapshot(regInfos, owners, _version + 1);
+		}
+
+		public Snapshot unregister(String servletContextName) {
+			Map<String, ExtRegistryInfo> regInfos =
+				new LinkedHashMap<String, ExtRegistryInfo>(_regInfos);
+			Map<String, String[]> owners = new HashMap<String, String[]>(
+				_owners);
+
+			ExtRegistryInfo regInfo = regInfos.remove(servletContextName);
+
+			if (regInfo != null) {
+				for (String file : regInfo.getFiles()) {
+					_removeOwner(owners, file, servletContextName);
+				}
+			}
+
+			return new Snapshot(regInfos, owners, _version + 1);
+		}
+
+		public Snapshot updateServletContext(ServletContext servletContext) {
+			String servletContextName = servletContext.getServletContextName();
+
+			Map<String, ExtRegistryInfo> regInfos =
+				new LinkedHashMap<String, ExtRegistryInfo>(_regInfos);
+
+			ExtRegistryInfo regInfo = regInfos.get(servletContextName);
+
+			regInfos.put(
+				servletContextName,
+				new ExtRegistryInfo(
+					servletContextName, servletContext,
+					regInfo.getManifest()));
+
+			// The files are the same, so the owners can be shared and the
+			// version is kept
+
+			return new Snapshot(regInfos, _owners, _version);
+		}
+
+		private Snapshot(
+			Map<String, ExtRegistryInfo> regInfos,
+			Map<String, String[]> owners, long version) {
+
+			_regInfos = regInfos;
+			_owners = owners;
+			_version = version;
+
+			Set<ServletContext> servletContexts =
+				new LinkedHashSet<ServletContext>(regInfos.size());
+
+			for (ExtRegistryInfo regInfo : regInfos.values()) {
+				servletContexts.add(regInfo.getServletContext());
+			}
+
+			_servletContextNames = Collections.unmodifiableSet(
+				regInfos.keySet());
+			_servletContexts = Collections.unmodifiableSet(servletContexts);
+		}
+
+		/**
+		 * Plugins registered at startup aren't checked for conflicts, so a
+		 * file may be listed by several plugins. The index keeps them in the
+		 * order they were registered, the first one owns the file and the
+		 * next one takes it over when the owner is unregistered. The arrays
+		 * are shared by snapshots and never modified.
+		 */
+		private void _addOwner(
+			Map<String, String[]> owners, String file,
+			String servletContextName) {
+
+			String[] servletContextNames = owners.get(file);
+
+			if (servletContextNames == null) {
+				owners.put(file, new String[] {servletContextName});
+
+				return;
+			}
+
+			String[] newServletContextNames =
+				new String[servletContextNames.length + 1];
+
+			System.arraycopy(
+				servletContextNames, 0, newServletContextNames, 0,
+				servletContextNames.length);
+
+			newServletContextNames[servletContextNames.length] =
+				servletContextName;
+
+			owners.put(file, newServletContextNames);
+		}
+
+		private void _removeOwner(
+			Map<String, String[]> owners, String file,
+			String servletContextName) {
+
+			String[] servletContextNames = owners.get(file);
+
+			if (servletContextNames == null) {
+				return;
+			}
+
+			List<String> newServletContextNames = new ArrayList<String>(
+				servletContextNames.length);
+
+			for (String curServletContextName : servletContextNames) {
+				if (!curServletContextName.equals(servletContextName)) {
+					newServletContextNames.add(curServletContextName);
+				}
+			}
+
+			if (newServletContextNames.isEmpty()) {
+				owners.remove(file);
+			}
+			else if (newServletContextNames.size() <
+						servletContextNames.length) {
+
+				owners.put(
+					file,
+					newServletContextNames.toArray(
+						new String[newServletContextNames.size()]));
+			}
+		}
+
+		private final Map<String, String[]> _owners;
+		private final Map<String, ExtRegistryInfo> _regInfos;
+		private final Set<String> _servletContextNames;
+		private final Set<ServletContext> _servletContexts;
+		private final long _version;
+
+	}
+
 }
 
+/**
+ * Is immutable, so it can be shared by registry snapshots.
+ */
 class ExtRegistryInfo {
-	private ServletContext servletContext;
-	private Set<String> files;
+	private final String servletContextName;
+	private final ServletContext servletContext;
+	private final ExtManifest manifest;
 
-	public ExtRegistryInfo(ServletContext servletContext, Set<String> files) {
+	public ExtRegistryInfo(
+		String servletContextName, ServletContext servletContext,
+		ExtManifest manifest) {
+
+		this.servletContextName = servletContextName;
 		this.servletContext = servletContext;
-		this.files = files;
+		this.manifest = manifest;
+	}
+
+	public ExtPathTrie getFiles() {
+		return manifest.getFiles();
 	}
 
-	public Set<String> getFiles() {
-		return files;
+	public ExtManifest getManifest() {
+		return manifest;
 	}
 
-	public void setFiles(Set<String> files) {
-		this.files = files;
+	public Set<String> getMergedFiles() {
+		return manifest.getMergedFiles();
 	}
 
 	public ServletContext getServletContext() {
 		return servletContext;
 	}
 
-	public void setServletContext(ServletContext servletContext) {
-		this.servletContext = servletContext;
+	public String getServletContextName() {
+		return servletContextName;
 	}
 
 }
-
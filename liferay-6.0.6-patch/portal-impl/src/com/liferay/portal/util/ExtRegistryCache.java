@@ -0,0 +1,361 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+import com.liferay.portal.deploy.hot.ExtFileUtil;
+import com.liferay.portal.kernel.log.Log;
+import com.liferay.portal.kernel.log.LogFactoryUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Binary copy of the files registered by the Ext Plugins installed in the
+ * portal, so the portal doesn't have to parse every ext-*-ext.xml in its
+ * WEB-INF when it starts.
+ *
+ * <p>
+ * The file is written to WEB-INF/ext-registry.cache after every deploy and
+ * memory mapped when it's read. It starts with a table of the distinct
+ * directory and file names of all paths, followed by the merged file patterns
+ * the files were filtered with and a record per plugin. A record holds the
+ * last modified time and length of the plugin's ext xml, its sorted paths as
+ * pairs of string table indexes, and the indexes of the merged file patterns
+ * its merged files match. A record is only used while the ext xml
+ * has the same time and length, and the whole file is ignored when the merged
+ * file patterns changed.
+ * </p>
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtRegistryCache {
+
+	public static final String FILE_NAME = "ext-registry.cache";
+
+	/**
+	 * Returns the cache in the portal WEB-INF directory, or <code>null</code>
+	 * if there's none or it was written for other merged file patterns.
+	 */
+	public static ExtRegistryCache read(
+		File webInfDir, List<String> mergedFilePatterns) {
+
+		File file = new File(webInfDir, FILE_NAME);
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		try {
+			ExtRegistryCache cache = new ExtRegistryCache(
+				webInfDir, _map(file));
+
+			if (!cache._mergedFilePatterns.equals(mergedFilePatterns)) {
+				if (_log.isInfoEnabled()) {
+					_log.info(
+						"Ignoring " + file + " written for other merged " +
+							"file patterns");
+				}
+
+				return null;
+			}
+
+			return cache;
+		}
+		catch (Exception e) {
+			_log.warn("Unable to read " + file, e);
+
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the manifests of the given plugins to the cache in the portal
+	 * WEB-INF directory. Plugins without an ext xml in the directory are left
+	 * out.
+	 */
+	public static void write(
+			File webInfDir, List<String> mergedFilePatterns,
+			Map<String, ExtManifest> manifests)
+		throws IOException {
+
+		Map<String, Integer> indexes = new LinkedHashMap<String, Integer>();
+
+		for (String mergedFilePattern : mergedFilePatterns) {
+			_addString(indexes, mergedFilePattern);
+		}
+
+		List<String> servletContextNames = new ArrayList<String>();
+
+		for (Map.Entry<String, ExtManifest> entry : manifests.entrySet()) {
+			String servletContextName = entry.getKey();
+
+			if (!_getExtXmlFile(webInfDir, servletContextName).isFile()) {
+				continue;
+			}
+
+			servletContextNames.add(servletContextName);
+
+			_addString(indexes, servletContextName);
+
+			ExtManifest manifest = entry.getValue();
+
+			for (String path : manifest.getFiles()) {
+				int pos = path.lastIndexOf('/') + 1;
+
+				_addString(indexes, path.substring(0, pos));
+				_addString(indexes, path.substring(pos));
+			}
+
+			for (String mergedFile : manifest.getMergedFiles()) {
+				_addString(indexes, mergedFile);
+			}
+		}
+
+		File file = new File(webInfDir, FILE_NAME);
+		File tempFile = new File(webInfDir, FILE_NAME + ".tmp");
+
+		DataOutputStream dataOutputStream = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+		try {
+			dataOutputStream.writeInt(_MAGIC);
+			dataOutputStream.writeInt(_VERSION);
+
+			dataOutputStream.writeInt(indexes.size());
+
+			for (String string : indexes.keySet()) {
+				byte[] bytes = string.getBytes(_CHARSET);
+
+				dataOutputStream.writeInt(bytes.length);
+				dataOutputStream.write(bytes);
+			}
+
+			dataOutputStream.writeInt(mergedFilePatterns.size());
+
+			for (String mergedFilePattern : mergedFilePatterns) {
+				dataOutputStream.writeInt(indexes.get(mergedFilePattern));
+			}
+
+			dataOutputStream.writeInt(servletContextNames.size());
+
+			for (String servletContextName : servletContextNames) {
+				File extXmlFile = _getExtXmlFile(webInfDir, servletContextName);
+
+				ExtManifest manifest = manifests.get(servletContextName);
+
+				Set<String> paths = new TreeSet<String>(manifest.getFiles());
+
+				dataOutputStream.writeInt(indexes.get(servletContextName));
+				dataOutputStream.writeLong(extXmlFile.lastModified());
+				dataOutputStream.writeLong(extXmlFile.length());
+				dataOutputStream.writeInt(paths.size());
+
+				for (String path : paths) {
+					int pos = path.lastIndexOf('/') + 1;
+
+					dataOutputStream.writeInt(
+						indexes.get(path.substring(0, pos)));
+					dataOutputStream.writeInt(indexes.get(path.substring(pos)));
+				}
+
+				Set<String> mergedFiles = manifest.getMergedFiles();
+
+				dataOutputStream.writeInt(mergedFiles.size());
+
+				for (String mergedFile : mergedFiles) {
+					dataOutputStream.writeInt(indexes.get(mergedFile));
+				}
+			}
+		}
+		finally {
+			dataOutputStream.close();
+		}
+
+		ExtFileUtil.replaceFile(tempFile, file);
+	}
+
+	/**
+	 * Returns the manifest of the plugin, or <code>null</code> if the plugin
+	 * isn't cached or its ext xml changed since the cache was written.
+	 */
+	public ExtManifest getManifest(String servletContextName) {
+		Integer position = _positions.get(servletContextName);
+
+		if (position == null) {
+			return null;
+		}
+
+		ByteBuffer byteBuffer = _byteBuffer.duplicate();
+
+		byteBuffer.position(position);
+
+		File extXmlFile = _getExtXmlFile(_webInfDir, servletContextName);
+
+		long lastModified = byteBuffer.getLong();
+		long length = byteBuffer.getLong();
+
+		if ((lastModified != extXmlFile.lastModified()) ||
+			(length != extXmlFile.length())) {
+
+			return null;
+		}
+
+		int count = byteBuffer.getInt();
+
+		List<String> files = new ArrayList<String>(count);
+
+		for (int i = 0; i < count; i++) {
+			String dir = _strings[byteBuffer.getInt()];
+			String name = _strings[byteBuffer.getInt()];
+
+			files.add(dir.concat(name));
+		}
+
+		List<String> mergedFiles = new ArrayList<String>();
+
+		count = byteBuffer.getInt();
+
+		for (int i = 0; i < count; i++) {
+			mergedFiles.add(_strings[byteBuffer.getInt()]);
+		}
+
+		return new ExtManifest(files, mergedFiles);
+	}
+
+	/**
+	 * Reads the string table and finds the plugin records. All indexes are
+	 * checked here, so reading the files of a plugin later can't fail.
+	 */
+	private ExtRegistryCache(File webInfDir, ByteBuffer byteBuffer)
+		throws IOException {
+
+		_webInfDir = webInfDir;
+		_byteBuffer = byteBuffer;
+
+		if ((byteBuffer.getInt() != _MAGIC) ||
+			(byteBuffer.getInt() != _VERSION)) {
+
+			throw new IOException("Unknown format");
+		}
+
+		_strings = new String[byteBuffer.getInt()];
+
+		for (int i = 0; i < _strings.length; i++) {
+			byte[] bytes = new byte[byteBuffer.getInt()];
+
+			byteBuffer.get(bytes);
+
+			_strings[i] = new String(bytes, _CHARSET);
+		}
+
+		String[] mergedFilePatterns = new String[byteBuffer.getInt()];
+
+		for (int i = 0; i < mergedFilePatterns.length; i++) {
+			mergedFilePatterns[i] = _getString(byteBuffer);
+		}
+
+		_mergedFilePatterns = Arrays.asList(mergedFilePatterns);
+
+		int count = byteBuffer.getInt();
+
+		for (int i = 0; i < count; i++) {
+			String servletContextName = _getString(byteBuffer);
+
+			_positions.put(servletContextName, byteBuffer.position());
+
+			byteBuffer.getLong();
+			byteBuffer.getLong();
+
+			int filesCount = byteBuffer.getInt();
+
+			for (int j = 0; j < filesCount * 2; j++) {
+				_getString(byteBuffer);
+			}
+
+			int mergedFilesCount = byteBuffer.getInt();
+
+			for (int j = 0; j < mergedFilesCount; j++) {
+				_getString(byteBuffer);
+			}
+		}
+	}
+
+	private static void _addString(Map<String, Integer> indexes, String s) {
+		if (!indexes.containsKey(s)) {
+			indexes.put(s, indexes.size());
+		}
+	}
+
+	private static File _getExtXmlFile(
+		File webInfDir, String servletContextName) {
+
+		return new File(webInfDir, "ext-" + servletContextName + ".xml");
+	}
+
+	private static ByteBuffer _map(File file) throws IOException {
+		FileInputStream fileInputStream = new FileInputStream(file);
+
+		try {
+			FileChannel fileChannel = fileInputStream.getChannel();
+
+			return fileChannel.map(
+				FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+		}
+		finally {
+			fileInputStream.close();
+		}
+	}
+
+	private String _getString(ByteBuffer byteBuffer) throws IOException {
+		int index = byteBuffer.getInt();
+
+		if ((index < 0) || (index >= _strings.length)) {
+			throw new IOException("Invalid string index " + index);
+		}
+
+		return _strings[index];
+	}
+
+	private static final String _CHARSET = "UTF-8";
+
+	private static final int _MAGIC = 0x45585452;
+
+	private static final int _VERSION = 2;
+
+	private static Log _log = LogFactoryUtil.getLog(ExtRegistryCache.class);
+
+	private ByteBuffer _byteBuffer;
+	private List<String> _mergedFilePatterns;
+	private Map<String, Integer> _positions = new HashMap<String, Integer>();
+	private String[] _strings;
+	private File _webInfDir;
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Describes a change of the {@link ExtRegistry}. The merged files are the
+ * entries of {@link ExtRegistry#SUPPORTED_MERGING_FILES}, and the patterns of
+ * the ext.merged.files.patterns property, the plugin's merged files match. A
+ * listener interested in struts-config-ext.xml, for example, can ignore the
+ * events for which {@link #isMergedFileChanged(String)} returns
+ * <code>false</code>.
+ *
+ * @author Tomas Polesovsky
+ */
+public class ExtRegistryEvent {
+
+	public static final int TYPE_REGISTER = 1;
+
+	public static final int TYPE_UNREGISTER = 2;
+
+	public ExtRegistryEvent(
+		int type, String servletContextName, Set<String> mergedFiles,
+		long version) {
+
+		_type = type;
+		_servletContextName = servletContextName;
+		_mergedFiles = Collections.unmodifiableSet(mergedFiles);
+		_version = version;
+	}
+
+	/**
+	 * Returns the merged file categories that changed. A registered plugin
+	 * that replaces its previous version reports the categories of both
+	 * versions.
+	 */
+	public Set<String> getMergedFiles() {
+		return _mergedFiles;
+	}
+
+	public String getServletContextName() {
+		return _servletContextName;
+	}
+
+	public int getType() {
+		return _type;
+	}
+
+	/**
+	 * Returns the version of the registry after the change.
+	 */
+	public long getVersion() {
+		return _version;
+	}
+
+	public boolean isMergedFileChanged(String mergedFile) {
+		return _mergedFiles.contains(mergedFile);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		if (_type == TYPE_REGISTER) {
+			sb.append("Registered ");
+		}
+		else {
+			sb.append("Unregistered ");
+		}
+
+		sb.append(_servletContextName);
+		sb.append(" changing ");
+		sb.append(_mergedFiles);
+		sb.append(" in version ");
+		sb.append(_version);
+
+		return sb.toString();
+	}
+
+	private final Set<String> _mergedFiles;
+	private final String _servletContextName;
+	private final int _type;
+	private final long _version;
+
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2000-2011 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+
+package com.liferay.portal.util;
+
+/**
+ * Is notified of the Ext Plugins registered or unregistered by a committed
+ * deploy, once their files are in place. Descriptors the portal reads through
+ * its class loader, like ext-model-hints.xml or tiles-defs-ext.xml, still
+ * change only on restart, because a new plugin's jars aren't on that class
+ * loader before.
+ *
+ * @author Tomas Polesovsky
+ * @see    ExtRegistry#addListener(ExtRegistryListener)
+ */
+public interface ExtRegistryListener {
+
+	public void registryChanged(ExtRegistryEvent event);
+
+}